@@ -0,0 +1,45 @@
+package nablarch.common.handler;
+
+import nablarch.core.transaction.TransactionContext;
+import nablarch.fw.ExecutionContext;
+import nablarch.fw.Handler;
+
+/**
+ * 後続処理をリクエストの範囲として扱い、リークしたトランザクションを解放するハンドラ。
+ * <pre>
+ * 後続ハンドラへの処理委譲の前後に、{@link TransactionContext#enterRequest()}と
+ * {@link TransactionContext#exitRequest()}を呼び出す。
+ * 最も外側のリクエストの終了時に、その範囲内で{@link TransactionContext}に登録されたまま残っている
+ * トランザクションをトランザクション名に関わらずロールバックし、スレッドコンテキストから削除する。
+ *
+ * {@link TransactionManagementHandler}を{@link nablarch.fw.InboundHandleable}
+ * {@link nablarch.fw.OutboundHandleable}としてのみ使用する場合など、
+ * トランザクションを登録するハンドラ自身がリクエストの範囲を示せない場合に、それらより外側に設定する。
+ *
+ * 設定例:<br/>
+ * {@code
+ * <list name="handlerQueue">
+ *      <component class="nablarch.common.handler.TransactionLeakGuardHandler"/>
+ *      <!-- Inbound処理でトランザクションを開始するハンドラなど -->
+ * </list>
+ * }
+ * </pre>
+ */
+public class TransactionLeakGuardHandler implements Handler<Object, Object> {
+
+    /**
+     * {@inheritDoc}
+     * <pre>
+     * このクラスの実装では後続ハンドラに対する処理委譲の前後に、
+     * リクエストの開始と終了をそれぞれ{@link TransactionContext}に通知する。
+     * </pre>
+     */
+    public Object handle(Object inputData, ExecutionContext ctx) {
+        TransactionContext.enterRequest();
+        try {
+            return ctx.handleNext(inputData);
+        } finally {
+            TransactionContext.exitRequest();
+        }
+    }
+}
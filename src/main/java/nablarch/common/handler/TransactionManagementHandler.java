@@ -1,8 +1,14 @@
 package nablarch.common.handler;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import nablarch.common.handler.TransactionProfiler.Phase;
+import nablarch.common.handler.TransactionProfiler.Sample;
+import nablarch.core.ThreadContext;
+import nablarch.core.transaction.ReadOnlyCapableTransaction;
 import nablarch.core.transaction.Transaction;
 import nablarch.core.transaction.TransactionContext;
 import nablarch.core.transaction.TransactionExecutor;
@@ -11,6 +17,7 @@ import nablarch.core.util.ObjectUtil;
 import nablarch.core.util.StringUtil;
 import nablarch.fw.ExecutionContext;
 import nablarch.fw.Handler;
+import nablarch.fw.HandlerWrapper;
 import nablarch.fw.InboundHandleable;
 import nablarch.fw.OutboundHandleable;
 import nablarch.fw.Result;
@@ -33,6 +40,16 @@ import nablarch.fw.TransactionEventCallback;
  *     いずれかのサブクラスである場合はトランザクションをコミットする。
  * 5.  トランザクションオブジェクトを{@link TransactionContext}から除去する。
  *
+ * 読み取り専用として扱うリクエストでは、1.で取得したトランザクションが
+ * {@link ReadOnlyCapableTransaction}を実装していれば、読み取り専用としてトランザクションを開始する。
+ * 読み取り専用とするか否かは、以下の順に判定する。
+ *   - リクエストスコープ変数{@link #READ_ONLY_KEY}に設定された値({@link Boolean})
+ *   - {@link #setReadOnly(boolean)}の設定値
+ *   - {@link #setReadOnlyRequestPaths(java.util.List)}で設定したリクエストパスとリクエストIDの一致
+ * 正常終了時のコールバック({@link TransactionEventCallback#transactionNormalEnd})は
+ * 読み取り専用のトランザクション内で呼び出されるため、更新を行うコールバックとは併用できない。
+ * 異常終了時のコールバックは、読み取り専用を解除したトランザクションで呼び出す。
+ *
  * 設定例:<br/>
  * {@code
  * <component class="nablarch.common.handler.TransactionManagementHandler">
@@ -60,6 +77,13 @@ import nablarch.fw.TransactionEventCallback;
 public class TransactionManagementHandler
 extends TransactionEventCallback.Provider<Object>
 implements Handler<Object, Object>, InboundHandleable, OutboundHandleable {
+
+    /** トランザクションを読み取り専用とするか否かを指定するリクエストスコープ変数名 */
+    public static final String READ_ONLY_KEY = "nablarch_transaction_read_only";
+
+    /** Inbound処理からOutbound処理へプロファイラのサンプルを引き継ぐリクエストスコープ変数名 */
+    private static final String PROFILER_SAMPLE_KEY = TransactionManagementHandler.class.getName() + ".profilerSample";
+
     /**
      * トランザクションオブジェクトを取得するためのファクトリを設定する。
      *
@@ -73,6 +97,54 @@ implements Handler<Object, Object>, InboundHandleable, OutboundHandleable {
     /** トランザクションオブジェクトを取得するためのファクトリ */
     private TransactionFactory transactionFactory;
 
+    /**
+     * 読み取り専用のトランザクションを取得するためのファクトリを設定する。
+     * <pre>
+     * 読み取り専用として扱うリクエストでは、本ファクトリからトランザクションを取得する。
+     * 参照用のリソース(レプリカ等)へ振り分ける場合に使用する。
+     * 設定しなかった場合は{@link #setTransactionFactory(TransactionFactory)}で設定したファクトリを使用する。
+     * </pre>
+     *
+     * @param readOnlyTransactionFactory 読み取り専用のトランザクションを取得するためのファクトリ
+     */
+    public void setReadOnlyTransactionFactory(TransactionFactory readOnlyTransactionFactory) {
+        this.readOnlyTransactionFactory = readOnlyTransactionFactory;
+    }
+
+    /** 読み取り専用のトランザクションを取得するためのファクトリ */
+    private TransactionFactory readOnlyTransactionFactory;
+
+    /**
+     * 全てのリクエストのトランザクションを読み取り専用とするか否かを設定する。
+     * <pre>
+     * デフォルトは{@code false}。
+     * </pre>
+     *
+     * @param readOnly 読み取り専用とする場合は{@code true}
+     */
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    /** 全てのリクエストのトランザクションを読み取り専用とするか否か */
+    private boolean readOnly = false;
+
+    /**
+     * トランザクションを読み取り専用とするリクエストパスの一覧を設定する。
+     * <pre>
+     * リクエストパスはリクエストID({@link ThreadContext#getRequestId()})と比較する。
+     * 末尾が"*"のリクエストパスは前方一致で、それ以外は完全一致で比較する。
+     * </pre>
+     *
+     * @param requestPaths トランザクションを読み取り専用とするリクエストパスの一覧
+     */
+    public void setReadOnlyRequestPaths(List<String> requestPaths) {
+        readOnlyRequestPaths.addAll(requestPaths);
+    }
+
+    /** トランザクションを読み取り専用とするリクエストパスの一覧 */
+    private List<String> readOnlyRequestPaths = new ArrayList<String>();
+
     /**
      * このハンドラが管理するトランザクションの、スレッドコンテキスト上での登録名を設定する。
      * <pre>
@@ -92,6 +164,51 @@ implements Handler<Object, Object>, InboundHandleable, OutboundHandleable {
     private String transactionName = TransactionContext.DEFAULT_TRANSACTION_CONTEXT_KEY;
 
 
+    /**
+     * トランザクション処理時間をサンプリングするプロファイラを設定する。
+     * <pre>
+     * 設定しなかった場合はサンプリングを行わない。
+     * </pre>
+     *
+     * @param profiler トランザクション処理時間をサンプリングするプロファイラ
+     */
+    public void setProfiler(TransactionProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /** トランザクション処理時間をサンプリングするプロファイラ */
+    private TransactionProfiler profiler;
+
+    /** Inbound処理でサンプリングを開始し、Outbound処理が未実行のサンプルの件数 */
+    private final AtomicInteger pendingSampleCount = new AtomicInteger();
+
+    /**
+     * リークしたトランザクションを検出して解放するか否かを設定する。
+     * <pre>
+     * {@code true}を設定した場合、以下の動作となる。
+     *
+     * {@link Handler}として使用する場合、後続処理をリクエストの範囲
+     * ({@link TransactionContext#enterRequest()}、{@link TransactionContext#exitRequest()})として扱う。
+     * 最も外側のリクエストの終了時に、その範囲内で登録されたまま残っているトランザクションを
+     * トランザクション名に関わらずロールバックし、スレッドコンテキストから削除する。
+     * (後続でInbound処理のみが実行され、Outbound処理が実行されなかった場合や、
+     * 後続のハンドラが独自に登録したトランザクションを削除しなかった場合など)
+     *
+     * リークの検出はリクエストの範囲内で登録されたトランザクションのみが対象となる。
+     * {@link InboundHandleable} {@link OutboundHandleable}としてのみ使用する場合は、
+     * 外側に{@link TransactionLeakGuardHandler}を設定してリクエストの範囲を示すこと。
+     * デフォルトは{@code false}。
+     * </pre>
+     *
+     * @param leakGuardEnabled リークしたトランザクションを検出して解放する場合は{@code true}
+     */
+    public void setLeakGuardEnabled(boolean leakGuardEnabled) {
+        this.leakGuardEnabled = leakGuardEnabled;
+    }
+
+    /** リークしたトランザクションを検出して解放するか否か */
+    private boolean leakGuardEnabled = false;
+
     /**
      * 送出されてもトランザクションをコミットしなければならない例外クラスの一覧を設定する。
      * <pre>
@@ -134,33 +251,72 @@ implements Handler<Object, Object>, InboundHandleable, OutboundHandleable {
      * データベース接続オブジェクトの初期化と終了の処理をそれぞれ行う。
      * </pre>
      */
-    @SuppressWarnings("rawtypes")
     public Object handle(final Object inputData, final ExecutionContext ctx) {
+        if (!leakGuardEnabled) {
+            return handleInTransaction(inputData, ctx);
+        }
+        TransactionContext.enterRequest();
+        try {
+            return handleInTransaction(inputData, ctx);
+        } finally {
+            TransactionContext.exitRequest();
+        }
+    }
 
-        Transaction transaction = transactionFactory.getTransaction(transactionName);
-        TransactionContext.setTransaction(transactionName, transaction);
+    /**
+     * トランザクションを開始して後続ハンドラに処理を委譲し、トランザクションを終了する。
+     *
+     * @param inputData 入力データ
+     * @param ctx 実行コンテキスト
+     * @return 処理結果
+     */
+    @SuppressWarnings("rawtypes")
+    private Object handleInTransaction(final Object inputData, final ExecutionContext ctx) {
+
+        final Sample sample = (profiler == null) ? null : profiler.start();
+
+        Transaction transaction = registerTransaction(ctx);
         
-        final List<TransactionEventCallback> listeners = prepareListeners(inputData, ctx);
+        final List<TransactionEventCallback> listeners = getListeners(inputData, ctx);
         
         try {
             return (new TransactionExecutor<Object>(transaction) {
+
+                /** 実行中のフェーズ(例外発生時に経過時間を記録するフェーズ) */
+                private Phase currentPhase = Phase.BEFORE_BEGIN;
+
                 @Override
                 protected Object doInTransaction(Transaction transaction) {
+                    currentPhase = lap(sample, Phase.BEFORE_BEGIN, Phase.HANDLE_NEXT);
                     Object result = ctx.handleNext(inputData);
+                    currentPhase = lap(sample, Phase.HANDLE_NEXT, Phase.CALLBACK);
                     callNormalEndHandlers(listeners, inputData, ctx);
+                    currentPhase = lap(sample, Phase.CALLBACK, Phase.END_TRANSACTION);
                     return result;
                 }
 
                 @Override
                 protected void onError(Transaction transaction, final Throwable throwable) {
+                    lap(sample, currentPhase);
                     if ((throwable instanceof RuntimeException)
                       && mustBeCommittedWhenThrown((RuntimeException) throwable))
                     {
                         transaction.commit();
+                        lap(sample, Phase.END_TRANSACTION);
                         callNormalEndHandlers(listeners, inputData, ctx);
+                        lap(sample, Phase.CALLBACK);
                         return;
                     }
                     transaction.rollback();
+                    lap(sample, Phase.END_TRANSACTION);
+                    if (listeners.isEmpty()) {
+                        // コールバック対象が存在しない場合は、エラー時のトランザクションを開始しない
+                        return;
+                    }
+                    if (transaction instanceof ReadOnlyCapableTransaction) {
+                        // エラー時のコールバック処理は更新を伴うため、読み取り専用を解除して実行する
+                        ((ReadOnlyCapableTransaction) transaction).setReadOnly(false);
+                    }
                     // エラー時のコールバック処理を別トランザクションで再実行
                     (new TransactionExecutor<Void>(transaction) {
                         @Override
@@ -170,20 +326,273 @@ implements Handler<Object, Object>, InboundHandleable, OutboundHandleable {
                             return null;
                         }
                     }).execute();
+                    lap(sample, Phase.CALLBACK);
                 }
             }).execute();
             
         } finally {
             TransactionContext.removeTransaction(transactionName);
+            if (sample != null) {
+                // 正常終了時は、コールバック呼び出し後からここまでがコミットの処理時間となる
+                sample.lap(Phase.END_TRANSACTION);
+                profiler.record(sample);
+            }
+        }
+    }
+
+    /**
+     * サンプリング対象のリクエストであれば、前回の計測時刻からの経過時間を指定されたフェーズに記録する。
+     *
+     * @param sample サンプル(サンプリング対象外の場合は{@code null})
+     * @param phase フェーズ
+     */
+    private static void lap(Sample sample, Phase phase) {
+        if (sample != null) {
+            sample.lap(phase);
+        }
+    }
+
+    /**
+     * サンプリング対象のリクエストであれば、前回の計測時刻からの経過時間を指定されたフェーズに記録し、
+     * 次に実行するフェーズを返す。
+     *
+     * @param sample サンプル(サンプリング対象外の場合は{@code null})
+     * @param phase 経過時間を記録するフェーズ
+     * @param next 次に実行するフェーズ
+     * @return 次に実行するフェーズ
+     */
+    private static Phase lap(Sample sample, Phase phase, Phase next) {
+        lap(sample, phase);
+        return next;
+    }
+
+    /**
+     * このハンドラが管理するトランザクションを取得し、スレッドコンテキストに登録する。
+     *
+     * @param ctx 実行コンテキスト
+     * @return トランザクション
+     */
+    private Transaction registerTransaction(ExecutionContext ctx) {
+        final Transaction transaction = getTransaction(ctx);
+        TransactionContext.setTransaction(transactionName, transaction);
+        return transaction;
+    }
+
+    /**
+     * このハンドラが管理するトランザクションを取得する。
+     * <pre>
+     * 取得したトランザクションが{@link ReadOnlyCapableTransaction}を実装している場合は、
+     * 読み取り専用とするか否かを設定する。
+     * </pre>
+     *
+     * @param ctx 実行コンテキスト
+     * @return トランザクション
+     */
+    private Transaction getTransaction(ExecutionContext ctx) {
+        final boolean readOnlyRequest = isReadOnly(ctx);
+        final TransactionFactory factory = (readOnlyRequest && readOnlyTransactionFactory != null)
+                                         ? readOnlyTransactionFactory
+                                         : transactionFactory;
+        final Transaction transaction = factory.getTransaction(transactionName);
+        if (transaction instanceof ReadOnlyCapableTransaction) {
+            ((ReadOnlyCapableTransaction) transaction).setReadOnly(readOnlyRequest);
+        }
+        return transaction;
+    }
+
+    /**
+     * 現在のリクエストのトランザクションを読み取り専用とするか否かを判定する。
+     *
+     * @param ctx 実行コンテキスト
+     * @return 読み取り専用とする場合は{@code true}
+     */
+    protected boolean isReadOnly(ExecutionContext ctx) {
+        final Boolean specified = ctx.getRequestScopedVar(READ_ONLY_KEY);
+        if (specified != null) {
+            return specified;
+        }
+        if (readOnly) {
+            return true;
+        }
+        if (readOnlyRequestPaths.isEmpty()) {
+            return false;
+        }
+        final String requestId = ThreadContext.getRequestId();
+        if (requestId == null) {
+            return false;
+        }
+        for (String path : readOnlyRequestPaths) {
+            if (path.endsWith("*")
+                    ? requestId.startsWith(path.substring(0, path.length() - 1))
+                    : requestId.equals(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** キャッシュするハンドラキューの構成の最大数 */
+    private static final int MAX_LISTENER_CHAINS = 16;
+
+    /** ハンドラキューの構成ごとに解決したトランザクションイベントコールバックの一覧 */
+    private volatile ListenerChain[] listenerChains = new ListenerChain[0];
+
+    /**
+     * コールバックの探索結果をキャッシュするか否か。
+     * <p/>
+     * サブクラスで{@link #prepareListeners(Object, ExecutionContext)}がオーバライドされている場合は、
+     * 探索結果が入力データに依存する可能性があるためキャッシュしない。
+     */
+    private final boolean listenerCacheEnabled = !overridesPrepareListeners(getClass());
+
+    /**
+     * 指定されたクラスで{@link #prepareListeners(Object, ExecutionContext)}がオーバライドされているか否かを判定する。
+     *
+     * @param clazz 判定対象のクラス
+     * @return オーバライドされている場合は{@code true}
+     */
+    private static boolean overridesPrepareListeners(Class<?> clazz) {
+        for (Class<?> c = clazz; c != TransactionManagementHandler.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod("prepareListeners", Object.class, ExecutionContext.class);
+                return true;
+            } catch (NoSuchMethodException ignored) {
+                // このクラスではオーバライドされていない
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 後続のハンドラキューに含まれるトランザクションイベントコールバックを取得する。
+     * <pre>
+     * コールバックの探索({@link #prepareListeners(Object, ExecutionContext)})の結果はハンドラキューの構成ごとにキャッシュし、
+     * キャッシュ済みの構成と同一であればキャッシュした結果を返す。
+     * 構成の比較対象は、コールバックの探索範囲と同じく、次の{@link TransactionEventCallback.Provider}
+     * より前のハンドラのみとする。
+     * キャッシュする構成は最大{@value #MAX_LISTENER_CHAINS}件とし、超えた場合は古いものから破棄する。
+     *
+     * なお、以下の場合は入力データによって探索結果が変わる可能性があるためキャッシュは行わない。
+     *   - 探索範囲に{@link HandlerWrapper}が含まれる場合
+     *   - サブクラスで{@link #prepareListeners(Object, ExecutionContext)}がオーバライドされている場合
+     * </pre>
+     *
+     * @param inputData 入力データ
+     * @param ctx 実行コンテキスト
+     * @return トランザクションイベントコールバックの一覧
+     */
+    @SuppressWarnings("rawtypes")
+    private List<TransactionEventCallback> getListeners(Object inputData, ExecutionContext ctx) {
+        if (!listenerCacheEnabled) {
+            return prepareListeners(inputData, ctx);
+        }
+        final List<Handler> handlerQueue = ctx.getHandlerQueue();
+        final ListenerChain[] chains = listenerChains;
+        for (ListenerChain chain : chains) {
+            if (chain.matches(handlerQueue)) {
+                return chain.listeners;
+            }
         }
+
+        final List<TransactionEventCallback> listeners = prepareListeners(inputData, ctx);
+        final Handler[] searchRange = ListenerChain.getCacheableSearchRange(handlerQueue);
+        if (searchRange != null) {
+            final int keep = Math.min(chains.length, MAX_LISTENER_CHAINS - 1);
+            final ListenerChain[] newChains = new ListenerChain[keep + 1];
+            System.arraycopy(chains, chains.length - keep, newChains, 0, keep);
+            newChains[keep] = new ListenerChain(searchRange, listeners);
+            listenerChains = newChains;
+        }
+        return listeners;
     }
 
+    /**
+     * ハンドラキューの構成と、そこから探索したトランザクションイベントコールバックの組。
+     * <p/>
+     * ハンドラキューの構成は、コールバックの探索範囲
+     * (次の{@link TransactionEventCallback.Provider}より前のハンドラ)のみを保持する。
+     */
+    @SuppressWarnings("rawtypes")
+    private static final class ListenerChain {
+
+        /** 探索範囲のハンドラ */
+        private final Handler[] handlers;
+
+        /** 探索したトランザクションイベントコールバック(変更不可) */
+        private final List<TransactionEventCallback> listeners;
+
+        /**
+         * コンストラクタ。
+         *
+         * @param handlers 探索範囲のハンドラ
+         * @param listeners 探索したトランザクションイベントコールバック
+         */
+        ListenerChain(Handler[] handlers, List<TransactionEventCallback> listeners) {
+            this.handlers = handlers;
+            this.listeners = Collections.unmodifiableList(new ArrayList<TransactionEventCallback>(listeners));
+        }
+
+        /**
+         * 指定されたハンドラキューの探索範囲が、探索時と同一の構成か否かを判定する。
+         *
+         * @param handlerQueue ハンドラキュー
+         * @return 同一の構成であれば{@code true}
+         */
+        boolean matches(List<Handler> handlerQueue) {
+            int i = 0;
+            for (Handler handler : handlerQueue) {
+                if (i == handlers.length) {
+                    // 探索範囲の直後は、探索を打ち切るハンドラでなければならない
+                    return isStopper(handler);
+                }
+                if (handler != handlers[i++]) {
+                    return false;
+                }
+            }
+            return i == handlers.length;
+        }
+
+        /**
+         * 指定されたハンドラキューから、キャッシュ可能なコールバックの探索範囲を取得する。
+         *
+         * @param handlerQueue ハンドラキュー
+         * @return 探索範囲のハンドラ(探索範囲に{@link HandlerWrapper}が含まれキャッシュできない場合は{@code null})
+         */
+        static Handler[] getCacheableSearchRange(List<Handler> handlerQueue) {
+            final List<Handler> range = new ArrayList<Handler>();
+            for (Handler handler : handlerQueue) {
+                if (isStopper(handler)) {
+                    break;
+                }
+                if (handler instanceof HandlerWrapper) {
+                    return null;
+                }
+                range.add(handler);
+            }
+            return range.toArray(new Handler[range.size()]);
+        }
+
+        /**
+         * コールバックの探索を打ち切るハンドラか否かを判定する。
+         *
+         * @param handler ハンドラ
+         * @return 探索を打ち切るハンドラであれば{@code true}
+         */
+        private static boolean isStopper(Handler handler) {
+            return handler instanceof TransactionEventCallback.Provider;
+        }
+    }
 
     @Override
     public Result handleInbound(ExecutionContext context) {
-        final Transaction transaction = transactionFactory.getTransaction(transactionName);
-        TransactionContext.setTransaction(transactionName, transaction);
+        final Sample sample = (profiler == null) ? null : profiler.start();
+        final Transaction transaction = registerTransaction(context);
         transaction.begin();
+        if (sample != null) {
+            sample.lap(Phase.BEFORE_BEGIN);
+            pendingSampleCount.incrementAndGet();
+            context.setRequestScopedVar(PROFILER_SAMPLE_KEY, sample);
+        }
         return new Result.Success();
     }
 
@@ -195,10 +604,23 @@ implements Handler<Object, Object>, InboundHandleable, OutboundHandleable {
         }
         final Transaction transaction = TransactionContext.getTransaction(transactionName);
         TransactionContext.removeTransaction(transactionName);
-        if (isCompleteTransaction(context)) {
-            transaction.commit();
-        } else {
-            transaction.rollback();
+        // サンプリング中のリクエストが無い場合は、リクエストスコープ変数を参照しない
+        final Sample sample = (profiler == null || pendingSampleCount.get() == 0)
+                ? null : context.<Sample>getRequestScopedVar(PROFILER_SAMPLE_KEY);
+        lap(sample, Phase.HANDLE_NEXT);
+        try {
+            if (isCompleteTransaction(context)) {
+                transaction.commit();
+            } else {
+                transaction.rollback();
+            }
+        } finally {
+            if (sample != null) {
+                sample.lap(Phase.END_TRANSACTION);
+                context.setRequestScopedVar(PROFILER_SAMPLE_KEY, null);
+                pendingSampleCount.decrementAndGet();
+                profiler.record(sample);
+            }
         }
         return new Result.Success();
     }
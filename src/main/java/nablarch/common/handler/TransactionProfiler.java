@@ -0,0 +1,386 @@
+package nablarch.common.handler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import nablarch.core.ThreadContext;
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+
+/**
+ * {@link TransactionManagementHandler}のトランザクション処理時間をサンプリングし、
+ * リクエストパスごとの内訳を集計するクラス。
+ * <pre>
+ * {@link #setSamplingInterval(int)}で指定した件数ごとに1件のリクエストをサンプリングし、
+ * 以下のフェーズ({@link Phase})ごとの処理時間を記録する。
+ *
+ *   - トランザクション開始まで(トランザクションの開始処理を含む)
+ *   - 後続ハンドラの処理
+ *   - コミットまたはロールバック
+ *   - トランザクションイベントコールバックの呼び出し
+ *
+ * サンプルは固定長のリングバッファにロックを使用せずに格納し、古いものから上書きする。
+ * {@link #setReportInterval(long)}で指定した間隔ごとに、合計処理時間の上位
+ * {@link #setReportSize(int)}件のリクエストパスをINFOレベルでログに出力する。
+ * サンプリング対象外のリクエストで行う処理は、カウンタのインクリメントのみである。
+ *
+ * リクエストパスにはリクエストID({@link ThreadContext#getRequestId()})を使用する。
+ *
+ * 設定例:<br/>
+ * {@code
+ * <component class="nablarch.common.handler.TransactionManagementHandler">
+ *      <property name="transactionFactory" ref="transactionFactory"/>
+ *      <property name="profiler">
+ *          <component class="nablarch.common.handler.TransactionProfiler">
+ *              <!-- 100件に1件をサンプリングする -->
+ *              <property name="samplingInterval" value="100"/>
+ *          </component>
+ *      </property>
+ * </component>
+ * }
+ * </pre>
+ */
+public class TransactionProfiler {
+
+    /** Logger */
+    private static final Logger LOGGER = LoggerManager.get(TransactionProfiler.class);
+
+    /**
+     * 処理時間を記録するフェーズ。
+     */
+    public enum Phase {
+        /** トランザクション開始まで(トランザクションの開始処理を含む) */
+        BEFORE_BEGIN,
+        /** 後続ハンドラの処理 */
+        HANDLE_NEXT,
+        /** コミットまたはロールバック */
+        END_TRANSACTION,
+        /** トランザクションイベントコールバックの呼び出し */
+        CALLBACK
+    }
+
+    /** サンプリング間隔(何件に1件をサンプリングするか) */
+    private int samplingInterval = 100;
+
+    /**
+     * サンプリング間隔を設定する。
+     * <pre>
+     * 指定した件数ごとに1件のリクエストをサンプリングする。
+     * デフォルトは100。
+     * </pre>
+     *
+     * @param samplingInterval サンプリング間隔
+     */
+    public void setSamplingInterval(int samplingInterval) {
+        if (samplingInterval < 1) {
+            throw new IllegalArgumentException(
+                    "samplingInterval must be greater than 0. samplingInterval = [" + samplingInterval + "]");
+        }
+        this.samplingInterval = samplingInterval;
+    }
+
+    /** サンプルを格納するリングバッファ */
+    private AtomicReferenceArray<Sample> buffer = new AtomicReferenceArray<Sample>(1024);
+
+    /**
+     * サンプルを格納するリングバッファのサイズを設定する。
+     * <pre>
+     * デフォルトは1024。
+     * </pre>
+     *
+     * @param bufferSize リングバッファのサイズ
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException(
+                    "bufferSize must be greater than 0. bufferSize = [" + bufferSize + "]");
+        }
+        buffer = new AtomicReferenceArray<Sample>(bufferSize);
+    }
+
+    /** レポートに出力するリクエストパスの件数 */
+    private int reportSize = 10;
+
+    /**
+     * レポートに出力するリクエストパスの件数を設定する。
+     * <pre>
+     * デフォルトは10。
+     * </pre>
+     *
+     * @param reportSize レポートに出力するリクエストパスの件数
+     */
+    public void setReportSize(int reportSize) {
+        if (reportSize < 1) {
+            throw new IllegalArgumentException(
+                    "reportSize must be greater than 0. reportSize = [" + reportSize + "]");
+        }
+        this.reportSize = reportSize;
+    }
+
+    /** レポートを出力する間隔(ミリ秒) */
+    private long reportInterval = 60000L;
+
+    /**
+     * レポートを出力する間隔(ミリ秒)を設定する。
+     * <pre>
+     * 0以下を指定した場合はレポートを出力しない。
+     * デフォルトは60000(1分)。
+     * </pre>
+     *
+     * @param reportInterval レポートを出力する間隔(ミリ秒)
+     */
+    public void setReportInterval(long reportInterval) {
+        this.reportInterval = reportInterval;
+    }
+
+    /** リクエスト件数 */
+    private final AtomicLong requestCount = new AtomicLong();
+
+    /** リングバッファの書き込み位置 */
+    private final AtomicLong writeIndex = new AtomicLong();
+
+    /** 次にレポートを出力する時刻 */
+    private final AtomicLong nextReportTime = new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * リクエストの処理時間の計測を開始する。
+     * <p/>
+     * サンプリング対象外のリクエストの場合は{@code null}を返す。
+     *
+     * @return サンプル(サンプリング対象外の場合は{@code null})
+     */
+    public Sample start() {
+        if (requestCount.incrementAndGet() % samplingInterval != 0) {
+            return null;
+        }
+        return new Sample(this, ThreadContext.getRequestId());
+    }
+
+    /**
+     * 処理時間の計測に使用する現在時刻(ナノ秒)を取得する。
+     * <p/>
+     * デフォルトの実装では{@link System#nanoTime()}を返す。
+     *
+     * @return 現在時刻(ナノ秒)
+     */
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * 計測を終えたサンプルを記録する。
+     * <p/>
+     * レポートの出力時刻を過ぎている場合は、レポートを出力する。
+     * レポートの出力で発生した実行時例外はワーニングログに出力し、呼び出し元には送出しない。
+     * (リクエストの処理結果や例外を置き換えないようにするため)
+     *
+     * @param sample サンプル
+     */
+    public void record(Sample sample) {
+        final AtomicReferenceArray<Sample> current = buffer;
+        final int slot = (int) (writeIndex.getAndIncrement() % current.length());
+        current.set(slot, sample);
+
+        if (reportInterval <= 0) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final long next = nextReportTime.get();
+        if (now >= next && nextReportTime.compareAndSet(next, now + reportInterval)) {
+            try {
+                writeReport();
+            } catch (RuntimeException e) {
+                LOGGER.logWarn("failed to write transaction profile report.", e);
+            }
+        }
+    }
+
+    /**
+     * レポートをログに出力する。
+     */
+    protected void writeReport() {
+        if (!LOGGER.isInfoEnabled()) {
+            return;
+        }
+        final List<Statistics> report = getReport();
+        final StringBuilder message = new StringBuilder("transaction profile report.");
+        for (Statistics statistics : report) {
+            message.append(Logger.LS)
+                   .append("\trequestPath = [").append(statistics.getRequestPath()).append(']')
+                   .append(" count = [").append(statistics.getCount()).append(']')
+                   .append(" total(ms) = [").append(toMillis(statistics.getTotal())).append(']');
+            for (Phase phase : Phase.values()) {
+                message.append(' ').append(phase).append("(ms) = [")
+                       .append(toMillis(statistics.getElapsed(phase))).append(']');
+            }
+        }
+        LOGGER.logInfo(message.toString());
+    }
+
+    /**
+     * リングバッファ上のサンプルを集計し、合計処理時間の上位のリクエストパスを返す。
+     *
+     * @return 合計処理時間の降順に並べたリクエストパスごとの集計結果(最大{@link #setReportSize(int)}件)
+     */
+    public List<Statistics> getReport() {
+        final AtomicReferenceArray<Sample> current = buffer;
+        final Map<String, Statistics> aggregated = new HashMap<String, Statistics>();
+        for (int i = 0; i < current.length(); i++) {
+            final Sample sample = current.get(i);
+            if (sample == null) {
+                continue;
+            }
+            Statistics statistics = aggregated.get(sample.requestPath);
+            if (statistics == null) {
+                statistics = new Statistics(sample.requestPath);
+                aggregated.put(sample.requestPath, statistics);
+            }
+            statistics.add(sample);
+        }
+
+        final List<Statistics> result = new ArrayList<Statistics>(aggregated.values());
+        Collections.sort(result, new Comparator<Statistics>() {
+            @Override
+            public int compare(Statistics o1, Statistics o2) {
+                final long t1 = o1.getTotal();
+                final long t2 = o2.getTotal();
+                return t1 < t2 ? 1 : (t1 == t2 ? 0 : -1);
+            }
+        });
+        return result.size() > reportSize ? result.subList(0, reportSize) : result;
+    }
+
+    /**
+     * ナノ秒をミリ秒に変換する。
+     *
+     * @param nanos ナノ秒
+     * @return ミリ秒
+     */
+    private static long toMillis(long nanos) {
+        return nanos / 1000000L;
+    }
+
+    /**
+     * 1件のリクエストのフェーズごとの処理時間。
+     */
+    public static final class Sample {
+
+        /** 計測時刻の取得元 */
+        private final TransactionProfiler profiler;
+
+        /** リクエストパス */
+        private final String requestPath;
+
+        /** フェーズごとの処理時間(ナノ秒) */
+        private final long[] elapsed = new long[Phase.values().length];
+
+        /** 前回の計測時刻(ナノ秒) */
+        private long last;
+
+        /**
+         * コンストラクタ。
+         *
+         * @param profiler 計測時刻の取得元
+         * @param requestPath リクエストパス
+         */
+        Sample(TransactionProfiler profiler, String requestPath) {
+            this.profiler = profiler;
+            this.requestPath = requestPath;
+            this.last = profiler.nanoTime();
+        }
+
+        /**
+         * 前回の計測時刻からの経過時間を、指定されたフェーズの処理時間に加算する。
+         *
+         * @param phase フェーズ
+         */
+        public void lap(Phase phase) {
+            final long now = profiler.nanoTime();
+            elapsed[phase.ordinal()] += now - last;
+            last = now;
+        }
+    }
+
+    /**
+     * リクエストパスごとの集計結果。
+     */
+    public static final class Statistics {
+
+        /** リクエストパス */
+        private final String requestPath;
+
+        /** サンプル件数 */
+        private int count;
+
+        /** フェーズごとの処理時間の合計(ナノ秒) */
+        private final long[] elapsed = new long[Phase.values().length];
+
+        /**
+         * コンストラクタ。
+         *
+         * @param requestPath リクエストパス
+         */
+        Statistics(String requestPath) {
+            this.requestPath = requestPath;
+        }
+
+        /**
+         * サンプルを集計結果に加える。
+         *
+         * @param sample サンプル
+         */
+        void add(Sample sample) {
+            count++;
+            for (int i = 0; i < elapsed.length; i++) {
+                elapsed[i] += sample.elapsed[i];
+            }
+        }
+
+        /**
+         * リクエストパスを取得する。
+         *
+         * @return リクエストパス
+         */
+        public String getRequestPath() {
+            return requestPath;
+        }
+
+        /**
+         * サンプル件数を取得する。
+         *
+         * @return サンプル件数
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * 指定されたフェーズの処理時間の合計(ナノ秒)を取得する。
+         *
+         * @param phase フェーズ
+         * @return 処理時間の合計(ナノ秒)
+         */
+        public long getElapsed(Phase phase) {
+            return elapsed[phase.ordinal()];
+        }
+
+        /**
+         * 全フェーズの処理時間の合計(ナノ秒)を取得する。
+         *
+         * @return 処理時間の合計(ナノ秒)
+         */
+        public long getTotal() {
+            long total = 0;
+            for (long e : elapsed) {
+                total += e;
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package nablarch.core.transaction;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+import nablarch.core.util.annotation.Published;
+
+/**
+ * 複数の処理対象をまとめてトランザクション制御する抽象クラス。
+ * <p/>
+ * 処理対象を先頭から順に読み込み、コミット間隔で指定された件数ごとに1つのトランザクションで処理する。
+ * 処理対象は1トランザクション分のみ保持するため、全件をメモリ上に展開することなく処理できる。
+ * 各トランザクションの制御は{@link TransactionExecutor}を使用して行う。
+ * <p/>
+ * ある処理対象の処理で実行時例外が発生した場合は、当該の処理対象をエラーとして記録したうえでトランザクションを
+ * ロールバックし、同一トランザクション内のエラーとなっていない処理対象を先頭から再度処理する。
+ * このため、各処理対象の処理はロールバック後に再実行されても問題ないように実装すること。
+ * また、1トランザクション内でエラーが発生するたびに、それまでに成功した処理対象が再実行されるため、
+ * コミット間隔をKとした場合、1トランザクションあたりの処理呼び出し回数は最悪でKの2乗に比例する。
+ * エラーが多く発生する処理対象を扱う場合は、コミット間隔を小さくすること。
+ * <p/>
+ * トランザクションの開始やコミットで例外が発生した場合、および{@link Error}が発生した場合は、
+ * トランザクションをロールバックしたうえで例外を送出する。
+ * ロールバックで例外が発生した場合は、処理対象のエラーとはせずにその例外を送出する。
+ *
+ * @param <T> 処理対象の型
+ */
+@Published(tag = "architect")
+public abstract class BulkTransactionExecutor<T> {
+
+    /** Logger */
+    private static final Logger LOGGER = LoggerManager.get(
+            BulkTransactionExecutor.class);
+
+    /** トランザクション */
+    private final Transaction transaction;
+
+    /** コミット間隔 */
+    private final int commitInterval;
+
+    /**
+     * トランザクション制御オブジェクトを生成する。
+     * <p/>
+     * コミット間隔を大きくするとコミット回数は減るが、エラー発生時に再実行される処理対象が増える。
+     *
+     * @param transaction トランザクション
+     * @param commitInterval コミット間隔(1トランザクションで処理する件数)
+     * @throws IllegalArgumentException コミット間隔が1未満の場合
+     */
+    public BulkTransactionExecutor(Transaction transaction, int commitInterval) {
+        if (commitInterval < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "commitInterval must be greater than 0. commitInterval = [%d]", commitInterval));
+        }
+        this.transaction = transaction;
+        this.commitInterval = commitInterval;
+    }
+
+    /**
+     * 全ての処理対象を処理する。
+     *
+     * @param items 処理対象
+     * @return 処理結果
+     */
+    public final BulkTransactionResult execute(Iterable<? extends T> items) {
+        return execute(items.iterator());
+    }
+
+    /**
+     * 全ての処理対象を処理する。
+     *
+     * @param items 処理対象
+     * @return 処理結果
+     */
+    public final BulkTransactionResult execute(Iterator<? extends T> items) {
+        final BulkTransactionResult result = new BulkTransactionResult();
+        final List<T> group = new ArrayList<T>(Math.min(commitInterval, 1024));
+        long groupStart = 0;
+        while (items.hasNext()) {
+            group.add(items.next());
+            if (group.size() == commitInterval) {
+                executeGroup(group, groupStart, result);
+                groupStart += group.size();
+                group.clear();
+            }
+        }
+        if (!group.isEmpty()) {
+            executeGroup(group, groupStart, result);
+        }
+        return result;
+    }
+
+    /**
+     * 1トランザクション分の処理対象を処理する。
+     * <p/>
+     * 処理対象でエラーが発生した場合は、ロールバック後にエラーとなった処理対象を除いて再度処理する。
+     *
+     * @param group 処理対象
+     * @param groupStart 先頭の処理対象のインデックス
+     * @param result 処理結果
+     */
+    private void executeGroup(List<T> group, long groupStart, BulkTransactionResult result) {
+        final boolean[] failed = new boolean[group.size()];
+        int remaining = group.size();
+        while (remaining > 0) {
+            final GroupExecutor executor = new GroupExecutor(group, failed);
+            try {
+                executor.execute();
+                result.addSuccess(remaining);
+                return;
+            } catch (RuntimeException e) {
+                if (e != executor.itemError) {
+                    // トランザクションの開始やコミット、ロールバックで発生した例外は処理対象のエラーではない
+                    throw e;
+                }
+                final int current = executor.current;
+                failed[current] = true;
+                remaining--;
+                result.addFailure(groupStart + current);
+                onItemError(group.get(current), groupStart + current, e);
+            }
+        }
+    }
+
+    /**
+     * 処理対象でエラーが発生した場合の処理。
+     * <p/>
+     * 本メソッドではワーニングログの出力のみを行う。
+     * ログ出力以外の処理を必要とする場合には、本メソッドをオーバライドすること。
+     * なお、本メソッドはトランザクションのロールバック後に呼び出される。
+     *
+     * @param item エラーとなった処理対象
+     * @param index エラーとなった処理対象のインデックス
+     * @param e 発生した例外
+     */
+    protected void onItemError(T item, long index, RuntimeException e) {
+        LOGGER.logWarn(String.format("item has failed. index = [%d]", index), e);
+    }
+
+    /**
+     * トランザクション内で1件の処理対象を処理する。
+     * <p/>
+     * 本メソッド内でトランザクション制御を行ってはならない。
+     *
+     * @param transaction トランザクションオブジェクト
+     * @param item 処理対象
+     */
+    protected abstract void doInTransaction(Transaction transaction, T item);
+
+    /**
+     * 1トランザクション分の処理対象のうち、エラーとなっていないものを1つのトランザクションで処理する。
+     */
+    private final class GroupExecutor extends TransactionExecutor<Void> {
+
+        /** 処理対象 */
+        private final List<T> group;
+
+        /** エラーとなった処理対象 */
+        private final boolean[] failed;
+
+        /** 処理中の処理対象の位置 */
+        private int current = -1;
+
+        /** 処理対象の処理で発生した例外 */
+        private RuntimeException itemError;
+
+        /**
+         * コンストラクタ。
+         *
+         * @param group 処理対象
+         * @param failed エラーとなった処理対象
+         */
+        GroupExecutor(List<T> group, boolean[] failed) {
+            super(BulkTransactionExecutor.this.transaction);
+            this.group = group;
+            this.failed = failed;
+        }
+
+        @Override
+        protected Void doInTransaction(Transaction transaction) {
+            for (int i = 0; i < failed.length; i++) {
+                if (failed[i]) {
+                    continue;
+                }
+                current = i;
+                try {
+                    BulkTransactionExecutor.this.doInTransaction(transaction, group.get(i));
+                } catch (RuntimeException e) {
+                    itemError = e;
+                    throw e;
+                }
+            }
+            return null;
+        }
+    }
+}
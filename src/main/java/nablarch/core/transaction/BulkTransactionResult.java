@@ -0,0 +1,86 @@
+package nablarch.core.transaction;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * {@link BulkTransactionExecutor}の処理結果。
+ * <p/>
+ * 件数およびインデックスは{@code long}で保持するため、{@link Integer#MAX_VALUE}件を超える処理対象も扱える。
+ * ただし、エラーとなった処理対象のインデックスは配列で保持するため、
+ * エラーとなった件数は配列の最大長を超えることはできない。
+ */
+@Published(tag = "architect")
+public final class BulkTransactionResult {
+
+    /** 正常に処理された件数 */
+    private long successCount;
+
+    /** エラーとなった処理対象のインデックス(昇順) */
+    private long[] failedIndices = new long[0];
+
+    /** エラーとなった件数 */
+    private int failedCount;
+
+    /** {@link BulkTransactionExecutor}からのみ生成するためのコンストラクタ。 */
+    BulkTransactionResult() {
+    }
+
+    /**
+     * 正常に処理された件数を加算する。
+     *
+     * @param count 正常に処理された件数
+     */
+    void addSuccess(long count) {
+        successCount += count;
+    }
+
+    /**
+     * エラーとなった処理対象を記録する。
+     *
+     * @param index エラーとなった処理対象のインデックス
+     */
+    void addFailure(long index) {
+        if (failedCount == failedIndices.length) {
+            final long[] extended = new long[Math.max(8, failedCount * 2)];
+            System.arraycopy(failedIndices, 0, extended, 0, failedCount);
+            failedIndices = extended;
+        }
+        // 再実行時に先に処理した処理対象がエラーとなる場合があるため、昇順となる位置に挿入する
+        int position = failedCount;
+        while (position > 0 && failedIndices[position - 1] > index) {
+            position--;
+        }
+        System.arraycopy(failedIndices, position, failedIndices, position + 1, failedCount - position);
+        failedIndices[position] = index;
+        failedCount++;
+    }
+
+    /**
+     * 正常に処理された件数を取得する。
+     *
+     * @return 正常に処理された件数
+     */
+    public long getSuccessCount() {
+        return successCount;
+    }
+
+    /**
+     * エラーとなった件数を取得する。
+     *
+     * @return エラーとなった件数
+     */
+    public long getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     * エラーとなった処理対象のインデックスを昇順で取得する。
+     *
+     * @return エラーとなった処理対象のインデックス
+     */
+    public long[] getFailedIndices() {
+        final long[] result = new long[failedCount];
+        System.arraycopy(failedIndices, 0, result, 0, failedCount);
+        return result;
+    }
+}
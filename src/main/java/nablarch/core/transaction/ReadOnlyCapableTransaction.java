@@ -0,0 +1,32 @@
+package nablarch.core.transaction;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * 読み取り専用トランザクションをサポートする{@link Transaction}。
+ * <p/>
+ * 本インタフェースは{@link Transaction}の任意の拡張であり、
+ * 読み取り専用での実行をサポートするトランザクションのみが実装する。
+ * <p/>
+ * 実装クラスは以下を満たすこと。
+ * <ul>
+ * <li>{@link #setReadOnly(boolean)}に{@code true}が指定された場合、
+ * {@link #begin()}でトランザクションを読み取り専用として開始すること。
+ * (データベースやドライバが読み取り専用トランザクション向けの処理を選択できるようにするため)</li>
+ * <li>読み取り専用のトランザクション中に更新処理が行われた場合は、即座に例外を送出すること。</li>
+ * <li>読み取り専用のトランザクションでは、{@link #commit()}を省略もしくは軽量な終了処理に置き換えてもよい。
+ * ただし、トランザクションが保持するリソースは解放すること。</li>
+ * </ul>
+ */
+@Published(tag = "architect")
+public interface ReadOnlyCapableTransaction extends Transaction {
+
+    /**
+     * 次に開始するトランザクションを読み取り専用とするか否かを設定する。
+     * <p/>
+     * 本メソッドは{@link #begin()}の前に呼び出される。
+     *
+     * @param readOnly 読み取り専用とする場合は{@code true}
+     */
+    void setReadOnly(boolean readOnly);
+}
@@ -1,12 +1,24 @@
 package nablarch.core.transaction;
 
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
 import nablarch.core.util.annotation.Published;
 
 /**
  * スレッドに紐付けられた{@link Transaction}を保持するクラス。
+ * <p/>
+ * {@link #enterRequest()}と{@link #exitRequest()}でリクエストの範囲を示し、
+ * その範囲内で登録したトランザクションは、スレッドごとのリクエスト番号と登録時刻とともに保持する。
+ * 最も外側のリクエストの終了時に削除されずに残っているトランザクションは、
+ * 削除漏れ(リーク)とみなしてロールバックしたうえでスレッドローカルから削除する。
+ * <p/>
+ * リクエストの範囲外で登録したトランザクションは、
+ * リクエストとの対応が分からないためリークとはみなさない。
  *
  * @author Koichi Asano
  */
@@ -15,20 +27,41 @@ public final class TransactionContext {
     /** デフォルトのトランザクション名 */
     public static final String DEFAULT_TRANSACTION_CONTEXT_KEY = "transaction";
 
+    /** Logger */
+    private static final Logger LOGGER = LoggerManager.get(TransactionContext.class);
+
     /** 隠蔽コンストラクタ。 */
     private TransactionContext() {
     }
 
     /** スレッドに紐付けられたトランザクション。 */
-    private static ThreadLocal<Map<String, Transaction>> transaction = new ThreadLocal<Map<String, Transaction>>() {
+    private static ThreadLocal<Map<String, Registration>> transaction = new ThreadLocal<Map<String, Registration>>() {
         @Override
-        protected Map<String, Transaction> initialValue() {
-            return new HashMap<String, Transaction>();
+        protected Map<String, Registration> initialValue() {
+            return new HashMap<String, Registration>();
         }
     };
 
+    /** リクエストに属さないトランザクションのリクエスト番号 */
+    private static final long UNTRACKED = 0L;
+
+    /** スレッドごとのリクエストの状態。 */
+    private static ThreadLocal<RequestState> requestState = new ThreadLocal<RequestState>() {
+        @Override
+        protected RequestState initialValue() {
+            return new RequestState();
+        }
+    };
+
+    /** 検出したリークの件数 */
+    private static final AtomicLong LEAKED_COUNT = new AtomicLong();
+
     /**
      * トランザクションオブジェクトを設定する。
+     * <p/>
+     * {@link #enterRequest()}で開始したリクエストの範囲内で呼び出した場合、
+     * 登録したトランザクションは現在のリクエスト番号とともに保持され、
+     * 最も外側のリクエストの終了時に残っていればリークとして解放される。
      *
      * @param transactionName トランザクション名
      * @param tran トランザクションオブジェクト
@@ -36,14 +69,15 @@ public final class TransactionContext {
      */
     @Published(tag = "architect")
     public static void setTransaction(String transactionName, Transaction tran) {
-        Map<String, Transaction> localMap = transaction.get();
+        Map<String, Registration> localMap = transaction.get();
 
         if (localMap.containsKey(transactionName)) {
             throw new IllegalArgumentException(String.format(
                     "specified transaction name was duplication in thread local. transaction name = [%s]",
                     transactionName));
         }
-        localMap.put(transactionName, tran);
+        final RequestState state = requestState.get();
+        localMap.put(transactionName, new Registration(tran, state.depth > 0 ? state.requestNumber : UNTRACKED));
     }
 
     /**
@@ -68,14 +102,14 @@ public final class TransactionContext {
      */
     @Published(tag = "architect")
     public static Transaction getTransaction(String transactionName) {
-        Map<String, Transaction> localMap = transaction.get();
-        Transaction tran = localMap.get(transactionName);
-        if (tran == null) {
+        Map<String, Registration> localMap = transaction.get();
+        Registration registration = localMap.get(transactionName);
+        if (registration == null || registration.transaction == null) {
             throw new IllegalArgumentException(String
                     .format("specified transaction name is not register in thread local. transaction name = [%s]",
                             transactionName));
         }
-        return tran;
+        return registration.transaction;
     }
 
     /**
@@ -96,7 +130,7 @@ public final class TransactionContext {
      */
     @Published(tag = "architect")
     public static void removeTransaction(String transactionName) {
-        Map<String, Transaction> localMap = transaction.get();
+        Map<String, Registration> localMap = transaction.get();
         localMap.remove(transactionName);
     }
 
@@ -109,4 +143,113 @@ public final class TransactionContext {
     public static boolean containTransaction(final String transactionName) {
         return transaction.get().containsKey(transactionName);
     }
+
+    /**
+     * リクエストの開始を通知する。
+     * <p/>
+     * リクエストは入れ子にでき、最も外側のリクエストの終了時にリークの検出を行う。
+     * 本メソッドを呼び出した場合は、必ず{@link #exitRequest()}を呼び出すこと。
+     */
+    @Published(tag = "architect")
+    public static void enterRequest() {
+        requestState.get().depth++;
+    }
+
+    /**
+     * リクエストの終了を通知する。
+     * <p/>
+     * 最も外側のリクエストの終了時には、そのリクエストの範囲内で登録され、
+     * 削除されずに残っているトランザクションをトランザクション名に関わらずリークとして解放し、
+     * リクエスト番号を進める。
+     */
+    @Published(tag = "architect")
+    public static void exitRequest() {
+        final RequestState state = requestState.get();
+        if (state.depth == 0) {
+            return;
+        }
+        if (--state.depth > 0) {
+            return;
+        }
+        final Map<String, Registration> localMap = transaction.get();
+        if (!localMap.isEmpty()) {
+            final Iterator<Map.Entry<String, Registration>> entries = localMap.entrySet().iterator();
+            while (entries.hasNext()) {
+                final Map.Entry<String, Registration> entry = entries.next();
+                if (entry.getValue().requestNumber == state.requestNumber) {
+                    entries.remove();
+                    release(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        state.requestNumber++;
+    }
+
+    /**
+     * リークしたトランザクションをロールバックし、ワーニングログを出力する。
+     *
+     * @param transactionName トランザクション名
+     * @param registration 登録情報
+     */
+    private static void release(String transactionName, Registration registration) {
+        LEAKED_COUNT.incrementAndGet();
+        LOGGER.logWarn(String.format(
+                "leaked transaction was released. transaction name = [%s], elapsed time(ms) = [%d]",
+                transactionName, System.currentTimeMillis() - registration.startTime));
+        if (registration.transaction != null) {
+            try {
+                registration.transaction.rollback();
+            } catch (RuntimeException e) {
+                LOGGER.logWarn(String.format(
+                        "failed to rollback leaked transaction. transaction name = [%s]", transactionName), e);
+            }
+        }
+    }
+
+    /**
+     * これまでに検出したリークの件数を取得する。
+     *
+     * @return リークの件数
+     */
+    public static long getLeakedTransactionCount() {
+        return LEAKED_COUNT.get();
+    }
+
+    /**
+     * スレッドごとのリクエストの状態。
+     */
+    private static final class RequestState {
+
+        /** 現在(最も外側)のリクエストのリクエスト番号 */
+        private long requestNumber = 1L;
+
+        /** リクエストの入れ子の深さ */
+        private int depth;
+    }
+
+    /**
+     * スレッドローカルに登録されたトランザクションと、その登録情報。
+     */
+    private static final class Registration {
+
+        /** トランザクション */
+        private final Transaction transaction;
+
+        /** 登録したリクエストのリクエスト番号(リクエストに属さない場合は{@link #UNTRACKED}) */
+        private final long requestNumber;
+
+        /** 登録時刻 */
+        private final long startTime = System.currentTimeMillis();
+
+        /**
+         * コンストラクタ。
+         *
+         * @param transaction トランザクション
+         * @param requestNumber 登録したリクエストのリクエスト番号
+         */
+        Registration(Transaction transaction, long requestNumber) {
+            this.transaction = transaction;
+            this.requestNumber = requestNumber;
+        }
+    }
 }
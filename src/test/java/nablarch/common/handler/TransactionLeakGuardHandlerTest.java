@@ -0,0 +1,152 @@
+package nablarch.common.handler;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import mockit.Delegate;
+import mockit.Mocked;
+import mockit.NonStrictExpectations;
+import mockit.Verifications;
+import nablarch.core.transaction.Transaction;
+import nablarch.core.transaction.TransactionContext;
+import nablarch.core.transaction.TransactionFactory;
+import nablarch.fw.ExecutionContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link TransactionLeakGuardHandler}のテスト。
+ */
+public class TransactionLeakGuardHandlerTest {
+
+    private TransactionLeakGuardHandler target = new TransactionLeakGuardHandler();
+
+    private TransactionManagementHandler transactionHandler = new TransactionManagementHandler();
+
+    @Mocked
+    private TransactionFactory transactionFactory;
+
+    @Mocked
+    private Transaction transaction;
+
+    @Mocked
+    private ExecutionContext context;
+
+    @Before
+    public void setUp() {
+        transactionHandler.setTransactionName("tran");
+        transactionHandler.setTransactionFactory(transactionFactory);
+    }
+
+    @After
+    public void tearDown() {
+        TransactionContext.removeTransaction("tran");
+    }
+
+    /**
+     * Inbound処理のみが実行され、Outbound処理が実行されずに残ったトランザクションが、
+     * リクエストの終了時に解放され、次のリクエストのInbound処理がエラーとならないこと。
+     */
+    @Test
+    public void testInboundWithoutOutbound() {
+        final long leakedCount = TransactionContext.getLeakedTransactionCount();
+        new NonStrictExpectations() {{
+            transactionFactory.getTransaction("tran");
+            result = transaction;
+            context.isProcessSucceeded();
+            result = true;
+            context.handleNext(any);
+            result = new Delegate<Object>() {
+                Object handleNext(Object data) {
+                    // Outbound処理を実行せずに終了する
+                    transactionHandler.handleInbound(context);
+                    return "ok";
+                }
+            };
+        }};
+
+        assertThat(target.handle("input", context), is((Object) "ok"));
+
+        assertThat(TransactionContext.containTransaction("tran"), is(false));
+        assertThat(TransactionContext.getLeakedTransactionCount(), is(leakedCount + 1));
+        new Verifications() {{
+            transaction.rollback();
+            times = 1;
+            transaction.commit();
+            times = 0;
+        }};
+
+        // 次のリクエストでは登録済みエラーとならない
+        assertTrue(transactionHandler.handleInbound(context).isSuccess());
+        assertTrue(transactionHandler.handleOutbound(context).isSuccess());
+        assertThat(TransactionContext.containTransaction("tran"), is(false));
+    }
+
+    /**
+     * Inbound処理とOutbound処理が実行された場合は、リークとして扱われないこと。
+     */
+    @Test
+    public void testInboundAndOutbound() {
+        final long leakedCount = TransactionContext.getLeakedTransactionCount();
+        new NonStrictExpectations() {{
+            transactionFactory.getTransaction("tran");
+            result = transaction;
+            context.isProcessSucceeded();
+            result = true;
+            context.handleNext(any);
+            result = new Delegate<Object>() {
+                Object handleNext(Object data) {
+                    transactionHandler.handleInbound(context);
+                    transactionHandler.handleOutbound(context);
+                    return "ok";
+                }
+            };
+        }};
+
+        assertThat(target.handle("input", context), is((Object) "ok"));
+
+        assertThat(TransactionContext.getLeakedTransactionCount(), is(leakedCount));
+        new Verifications() {{
+            transaction.commit();
+            times = 1;
+            transaction.rollback();
+            times = 0;
+        }};
+    }
+
+    /**
+     * 後続ハンドラで例外が発生した場合も、残ったトランザクションが解放され、例外が送出されること。
+     */
+    @Test
+    public void testError() {
+        final IllegalStateException error = new IllegalStateException("error");
+        new NonStrictExpectations() {{
+            transactionFactory.getTransaction("tran");
+            result = transaction;
+            context.handleNext(any);
+            result = new Delegate<Object>() {
+                Object handleNext(Object data) {
+                    transactionHandler.handleInbound(context);
+                    throw error;
+                }
+            };
+        }};
+
+        try {
+            target.handle("input", context);
+            fail("does not run.");
+        } catch (IllegalStateException e) {
+            assertThat(e, is(error));
+        }
+
+        assertThat(TransactionContext.containTransaction("tran"), is(false));
+        new Verifications() {{
+            transaction.rollback();
+            times = 1;
+        }};
+    }
+}
@@ -1,16 +1,37 @@
 package nablarch.common.handler;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import mockit.Delegate;
 import mockit.Mocked;
 import mockit.NonStrictExpectations;
 import mockit.Verifications;
+import mockit.VerificationsInOrder;
+import nablarch.common.handler.TransactionProfiler.Phase;
+import nablarch.common.handler.TransactionProfiler.Sample;
+import nablarch.common.handler.TransactionProfiler.Statistics;
+import nablarch.core.ThreadContext;
+import nablarch.core.transaction.ReadOnlyCapableTransaction;
 import nablarch.core.transaction.Transaction;
+import nablarch.core.transaction.TransactionContext;
 import nablarch.core.transaction.TransactionFactory;
 import nablarch.fw.ExecutionContext;
+import nablarch.fw.Handler;
+import nablarch.fw.HandlerWrapper;
+import nablarch.fw.TransactionEventCallback;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class TransactionManagementHandlerTest {
 
@@ -32,6 +53,15 @@ public class TransactionManagementHandlerTest {
         
         context.setProcessSucceeded(true);
     }
+
+    @After
+    public void tearDown() {
+        ThreadContext.clear();
+        TransactionContext.removeTransaction("tran");
+        TransactionContext.removeTransaction("outer");
+        TransactionContext.removeTransaction("custom");
+    }
+
     @Test
     public void test() {
         {
@@ -110,4 +140,751 @@ public class TransactionManagementHandlerTest {
         }
     }
 
+    /**
+     * ハンドラキューの構成が変わらない限り、コールバックの探索が一度しか行われないこと。
+     */
+    @Test
+    @SuppressWarnings("rawtypes")
+    public void testListenersAreCachedPerHandlerQueue(
+            @Mocked final Handler<Object, Object> handler1,
+            @Mocked final Handler<Object, Object> handler2,
+            @Mocked final TransactionEventCallback<Object> callback) {
+
+        final List<Handler> handlerQueue = new ArrayList<Handler>();
+        handlerQueue.add(handler1);
+        final List<TransactionEventCallback> listeners = new ArrayList<TransactionEventCallback>();
+        listeners.add(callback);
+
+        new NonStrictExpectations() {{
+            transactionFactory.getTransaction("tran");
+            result = transaction;
+            context.getHandlerQueue();
+            result = handlerQueue;
+            context.selectHandlers(any, TransactionEventCallback.class, (Class<?>) any);
+            result = listeners;
+            context.handleNext(any);
+            result = "ok";
+        }};
+
+        assertThat(target.handle("input", context), is((Object) "ok"));
+        assertThat(target.handle("input", context), is((Object) "ok"));
+
+        new Verifications() {{
+            context.selectHandlers(any, TransactionEventCallback.class, (Class<?>) any);
+            times = 1;
+            callback.transactionNormalEnd("input", context);
+            times = 2;
+        }};
+
+        // ハンドラキューの構成が変わった場合は再探索する
+        handlerQueue.add(handler2);
+        assertThat(target.handle("input", context), is((Object) "ok"));
+
+        new Verifications() {{
+            context.selectHandlers(any, TransactionEventCallback.class, (Class<?>) any);
+            times = 2;
+            callback.transactionNormalEnd("input", context);
+            times = 3;
+        }};
+    }
+
+    /**
+     * 次のトランザクション管理ハンドラより後ろに{@link HandlerWrapper}がある場合もキャッシュされること。
+     */
+    @Test
+    @SuppressWarnings("rawtypes")
+    public void testListenersAreCachedWhenWrapperIsAfterProvider(
+            @Mocked final Handler<Object, Object> handler,
+            @Mocked final HandlerWrapper<Object, Object> wrapper) {
+
+        final List<Handler> handlerQueue = new ArrayList<Handler>();
+        handlerQueue.add(handler);
+        handlerQueue.add(new TransactionManagementHandler());
+        handlerQueue.add(wrapper);
+
+        new NonStrictExpectations() {{
+            transactionFactory.getTransaction("tran");
+            result = transaction;
+            context.getHandlerQueue();
+            result = handlerQueue;
+        }};
+
+        target.handle("input", context);
+        target.handle("input", context);
+
+        new Verifications() {{
+            context.selectHandlers(any, TransactionEventCallback.class, (Class<?>) any);
+            times = 1;
+        }};
+    }
+
+    /**
+     * 探索範囲に{@link HandlerWrapper}がある場合はキャッシュされないこと。
+     */
+    @Test
+    @SuppressWarnings("rawtypes")
+    public void testListenersAreNotCachedWhenWrapperIsInSearchRange(
+            @Mocked final Handler<Object, Object> handler,
+            @Mocked final HandlerWrapper<Object, Object> wrapper) {
+
+        new NonStrictExpectations() {{
+            transactionFactory.getTransaction("tran");
+            result = transaction;
+            context.getHandlerQueue();
+            result = Arrays.<Handler>asList(handler, wrapper);
+        }};
+
+        target.handle("input", context);
+        target.handle("input", context);
+
+        new Verifications() {{
+            context.selectHandlers(any, TransactionEventCallback.class, (Class<?>) any);
+            times = 2;
+        }};
+    }
+
+    /**
+     * ハンドラキューの構成ごとにキャッシュされ、構成が交互に変わっても再探索されないこと。
+     */
+    @Test
+    @SuppressWarnings("rawtypes")
+    public void testListenersAreCachedPerShape(
+            @Mocked final Handler<Object, Object> handler1,
+            @Mocked final Handler<Object, Object> handler2) {
+
+        final List<Handler> queue1 = Arrays.<Handler>asList(handler1);
+        final List<Handler> queue2 = Arrays.<Handler>asList(handler1, handler2);
+
+        new NonStrictExpectations() {{
+            transactionFactory.getTransaction("tran");
+            result = transaction;
+            context.getHandlerQueue();
+            returns(queue1, queue2, queue1, queue2);
+        }};
+
+        for (int i = 0; i < 4; i++) {
+            target.handle("input", context);
+        }
+
+        new Verifications() {{
+            context.selectHandlers(any, TransactionEventCallback.class, (Class<?>) any);
+            times = 2;
+        }};
+    }
+
+    /**
+     * サブクラスでオーバライドしたコールバックの探索・呼び出し処理が使用され、
+     * 探索処理をオーバライドした場合はキャッシュされないこと。
+     */
+    @Test
+    @SuppressWarnings("rawtypes")
+    public void testOverriddenListenerHooks(
+            @Mocked final Handler<Object, Object> handler,
+            @Mocked final TransactionEventCallback<Object> callback) {
+
+        final List<TransactionEventCallback> listeners = new ArrayList<TransactionEventCallback>();
+        listeners.add(callback);
+        final List<String> called = new ArrayList<String>();
+
+        final TransactionManagementHandler sut = new TransactionManagementHandler() {
+            @Override
+            protected List<TransactionEventCallback> prepareListeners(Object data, ExecutionContext ctx) {
+                called.add("prepare:" + data);
+                return listeners;
+            }
+
+            @Override
+            protected void callNormalEndHandlers(
+                    List<TransactionEventCallback> list, Object data, ExecutionContext ctx) {
+                called.add("normalEnd:" + data);
+            }
+        };
+        sut.setTransactionName("tran");
+        sut.setTransactionFactory(transactionFactory);
+
+        new NonStrictExpectations() {{
+            transactionFactory.getTransaction("tran");
+            result = transaction;
+            context.getHandlerQueue();
+            result = Arrays.<Handler>asList(handler);
+        }};
+
+        sut.handle("input1", context);
+        sut.handle("input2", context);
+
+        assertThat(called, is(Arrays.asList(
+                "prepare:input1", "normalEnd:input1", "prepare:input2", "normalEnd:input2")));
+        new Verifications() {{
+            callback.transactionNormalEnd(any, (ExecutionContext) any);
+            times = 0;
+        }};
+    }
+
+    /**
+     * コールバックが存在しない場合、エラー時のコールバック用トランザクションが開始されないこと。
+     */
+    @Test
+    @SuppressWarnings("rawtypes")
+    public void testErrorWithoutListeners(@Mocked final Handler<Object, Object> handler) {
+        final IllegalStateException error = new IllegalStateException("error");
+        new NonStrictExpectations() {{
+            transactionFactory.getTransaction("tran");
+            result = transaction;
+            context.getHandlerQueue();
+            result = Arrays.<Handler>asList(handler);
+            context.selectHandlers(any, TransactionEventCallback.class, (Class<?>) any);
+            result = Collections.emptyList();
+            context.handleNext(any);
+            result = error;
+        }};
+
+        try {
+            target.handle("input", context);
+            fail("does not run.");
+        } catch (IllegalStateException e) {
+            assertThat(e, is(error));
+        }
+
+        new Verifications() {{
+            transaction.begin();
+            times = 1;
+            transaction.rollback();
+            times = 1;
+            transaction.commit();
+            times = 0;
+        }};
+    }
+
+    /**
+     * 読み取り専用の判定結果がトランザクションに設定されること。
+     */
+    @Test
+    public void testReadOnly(
+            @Mocked final ReadOnlyCapableTransaction readOnlyTransaction,
+            @Mocked final TransactionFactory readOnlyTransactionFactory) {
+
+        target.setReadOnlyTransactionFactory(readOnlyTransactionFactory);
+        target.setReadOnlyRequestPaths(Arrays.asList("/action/ref/*", "RW0001"));
+
+        new NonStrictExpectations(ThreadContext.class) {{
+            transactionFactory.getTransaction("tran");
+            result = readOnlyTransaction;
+            readOnlyTransactionFactory.getTransaction("tran");
+            result = readOnlyTransaction;
+            ThreadContext.getRequestId();
+            returns("/action/ref/list", "RW0001", "RW0002", "/action/ref/list");
+            context.getRequestScopedVar(TransactionManagementHandler.READ_ONLY_KEY);
+            returns(null, null, null, Boolean.FALSE);
+        }};
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(target.handleInbound(context).isSuccess());
+            assertTrue(target.handleOutbound(context).isSuccess());
+        }
+
+        new Verifications() {{
+            // リクエストパスに一致した場合のみ読み取り専用となり、参照用のファクトリから取得する
+            readOnlyTransactionFactory.getTransaction("tran");
+            times = 2;
+            readOnlyTransaction.setReadOnly(true);
+            times = 2;
+            // リクエストスコープ変数の指定が優先される
+            transactionFactory.getTransaction("tran");
+            times = 2;
+            readOnlyTransaction.setReadOnly(false);
+            times = 2;
+            readOnlyTransaction.begin();
+            times = 4;
+        }};
+    }
+
+    /**
+     * {@link TransactionManagementHandler#handle(Object, ExecutionContext)}でも読み取り専用が設定され、
+     * リクエストスコープ変数の指定がリクエストパスより優先されること。
+     * また、読み取り専用のファクトリが未設定の場合は通常のファクトリから取得すること。
+     */
+    @Test
+    public void testReadOnlyInHandle(@Mocked final ReadOnlyCapableTransaction readOnlyTransaction) {
+
+        target.setReadOnlyRequestPaths(Arrays.asList("/action/ref/*"));
+
+        new NonStrictExpectations(ThreadContext.class) {{
+            transactionFactory.getTransaction("tran");
+            result = readOnlyTransaction;
+            ThreadContext.getRequestId();
+            result = "/action/update";
+            context.getRequestScopedVar(TransactionManagementHandler.READ_ONLY_KEY);
+            returns(Boolean.TRUE, null);
+        }};
+
+        target.handle("input", context);
+
+        new Verifications() {{
+            // リクエストパスに一致しないが、リクエストスコープ変数の指定により読み取り専用となる
+            readOnlyTransaction.setReadOnly(true);
+            times = 1;
+            readOnlyTransaction.setReadOnly(false);
+            times = 0;
+            transactionFactory.getTransaction("tran");
+            times = 1;
+            readOnlyTransaction.begin();
+            times = 1;
+            readOnlyTransaction.commit();
+            times = 1;
+        }};
+
+        target.handle("input", context);
+
+        new Verifications() {{
+            // リクエストスコープ変数の指定がなく、リクエストパスにも一致しないため読み取り専用とならない
+            readOnlyTransaction.setReadOnly(false);
+            times = 1;
+            transactionFactory.getTransaction("tran");
+            times = 2;
+        }};
+    }
+
+    /** プロファイラのテストで各処理に要する時間(ミリ秒) */
+    private static final long ELAPSED_MILLIS = 100;
+
+    /**
+     * 計測時刻を任意に進められるプロファイラ。
+     */
+    private static class StubClockProfiler extends TransactionProfiler {
+
+        private long now;
+
+        @Override
+        protected long nanoTime() {
+            return now;
+        }
+
+        /** 計測時刻を{@link #ELAPSED_MILLIS}だけ進める。 */
+        void elapse() {
+            now += TimeUnit.MILLISECONDS.toNanos(ELAPSED_MILLIS);
+        }
+    }
+
+    /**
+     * プロファイラを設定し、リクエストIDを設定する。
+     */
+    private StubClockProfiler setUpProfiler() {
+        final StubClockProfiler profiler = new StubClockProfiler();
+        profiler.setSamplingInterval(1);
+        profiler.setReportInterval(0);
+        target.setProfiler(profiler);
+        ThreadContext.setRequestId("R0001");
+        return profiler;
+    }
+
+    /**
+     * 唯一のサンプルの集計結果を取得する。
+     */
+    private static Statistics onlyStatistics(TransactionProfiler profiler) {
+        final List<Statistics> report = profiler.getReport();
+        assertThat(report.size(), is(1));
+        assertThat(report.get(0).getRequestPath(), is("R0001"));
+        assertThat(report.get(0).getCount(), is(1));
+        return report.get(0);
+    }
+
+    /**
+     * 指定されたフェーズの処理時間(ミリ秒)を取得する。
+     */
+    private static long elapsedMillis(Statistics statistics, Phase phase) {
+        return TimeUnit.NANOSECONDS.toMillis(statistics.getElapsed(phase));
+    }
+
+    /**
+     * 正常終了時に、後続ハンドラとコミットの処理時間が記録されること。
+     */
+    @Test
+    public void testProfilerNormalEnd() {
+        final StubClockProfiler profiler = setUpProfiler();
+        new NonStrictExpectations() {{
+            transactionFactory.getTransaction("tran");
+            result = transaction;
+            context.handleNext(any);
+            result = new Delegate<Object>() {
+                Object handleNext(Object data) {
+                    profiler.elapse();
+                    return "ok";
+                }
+            };
+            transaction.commit();
+            result = new Delegate<Object>() {
+                void commit() {
+                    profiler.elapse();
+                }
+            };
+        }};
+
+        assertThat(target.handle("input", context), is((Object) "ok"));
+
+        final Statistics statistics = onlyStatistics(profiler);
+        assertThat(elapsedMillis(statistics, Phase.BEFORE_BEGIN), is(0L));
+        assertThat(elapsedMillis(statistics, Phase.HANDLE_NEXT), is(ELAPSED_MILLIS));
+        assertThat(elapsedMillis(statistics, Phase.END_TRANSACTION), is(ELAPSED_MILLIS));
+        assertThat(elapsedMillis(statistics, Phase.CALLBACK), is(0L));
+    }
+
+    /**
+     * コミットで例外が発生した場合、コミットの処理時間として記録されること。
+     */
+    @Test
+    public void testProfilerCommitError() {
+        final StubClockProfiler profiler = setUpProfiler();
+        final IllegalStateException error = new IllegalStateException("commit error");
+        new NonStrictExpectations() {{
+            transactionFactory.getTransaction("tran");
+            result = transaction;
+            transaction.commit();
+            result = new Delegate<Object>() {
+                void commit() {
+                    profiler.elapse();
+                    throw error;
+                }
+            };
+        }};
+
+        try {
+            target.handle("input", context);
+            fail("does not run.");
+        } catch (IllegalStateException e) {
+            assertThat(e, is(error));
+        }
+
+        final Statistics statistics = onlyStatistics(profiler);
+        assertThat(elapsedMillis(statistics, Phase.HANDLE_NEXT), is(0L));
+        assertThat(elapsedMillis(statistics, Phase.END_TRANSACTION), is(ELAPSED_MILLIS));
+    }
+
+    /**
+     * コミット対象の例外が発生した場合、後続ハンドラとコミットの処理時間が記録されること。
+     */
+    @Test
+    public void testProfilerCommitException() {
+        final StubClockProfiler profiler = setUpProfiler();
+        target.setTransactionCommitExceptions(Arrays.asList(IllegalStateException.class.getName()));
+        new NonStrictExpectations() {{
+            transactionFactory.getTransaction("tran");
+            result = transaction;
+            context.handleNext(any);
+            result = new Delegate<Object>() {
+                Object handleNext(Object data) {
+                    profiler.elapse();
+                    throw new IllegalStateException("commit exception");
+                }
+            };
+            transaction.commit();
+            result = new Delegate<Object>() {
+                void commit() {
+                    profiler.elapse();
+                }
+            };
+        }};
+
+        try {
+            target.handle("input", context);
+            fail("does not run.");
+        } catch (IllegalStateException ignored) {
+            // NOP
+        }
+
+        final Statistics statistics = onlyStatistics(profiler);
+        assertThat(elapsedMillis(statistics, Phase.HANDLE_NEXT), is(ELAPSED_MILLIS));
+        assertThat(elapsedMillis(statistics, Phase.END_TRANSACTION), is(ELAPSED_MILLIS));
+        new Verifications() {{
+            transaction.commit();
+            times = 1;
+            transaction.rollback();
+            times = 0;
+        }};
+    }
+
+    /**
+     * ロールバック時に、後続ハンドラとロールバックの処理時間が記録されること。
+     */
+    @Test
+    public void testProfilerRollback() {
+        final StubClockProfiler profiler = setUpProfiler();
+        new NonStrictExpectations() {{
+            transactionFactory.getTransaction("tran");
+            result = transaction;
+            context.handleNext(any);
+            result = new Delegate<Object>() {
+                Object handleNext(Object data) {
+                    profiler.elapse();
+                    throw new IllegalArgumentException("error");
+                }
+            };
+            transaction.rollback();
+            result = new Delegate<Object>() {
+                void rollback() {
+                    profiler.elapse();
+                }
+            };
+        }};
+
+        try {
+            target.handle("input", context);
+            fail("does not run.");
+        } catch (IllegalArgumentException ignored) {
+            // NOP
+        }
+
+        final Statistics statistics = onlyStatistics(profiler);
+        assertThat(elapsedMillis(statistics, Phase.HANDLE_NEXT), is(ELAPSED_MILLIS));
+        assertThat(elapsedMillis(statistics, Phase.END_TRANSACTION), is(ELAPSED_MILLIS));
+    }
+
+    /**
+     * Inbound処理で開始したサンプルがOutbound処理に引き継がれて記録されること。
+     */
+    @Test
+    public void testProfilerInboundOutbound() {
+        final StubClockProfiler profiler = setUpProfiler();
+        final Sample[] handedOver = new Sample[1];
+        new NonStrictExpectations() {{
+            transactionFactory.getTransaction("tran");
+            result = transaction;
+            context.isProcessSucceeded();
+            result = true;
+            context.setRequestScopedVar(withSuffix("profilerSample"), any);
+            result = new Delegate<Object>() {
+                ExecutionContext setRequestScopedVar(String name, Object value) {
+                    handedOver[0] = (Sample) value;
+                    return context;
+                }
+            };
+            context.getRequestScopedVar(withSuffix("profilerSample"));
+            result = new Delegate<Object>() {
+                Object getRequestScopedVar(String name) {
+                    return handedOver[0];
+                }
+            };
+            transaction.commit();
+            result = new Delegate<Object>() {
+                void commit() {
+                    profiler.elapse();
+                }
+            };
+        }};
+
+        assertTrue(target.handleInbound(context).isSuccess());
+        assertThat("Inbound処理でサンプルが引き継がれること", handedOver[0] != null, is(true));
+        profiler.elapse();
+        assertTrue(target.handleOutbound(context).isSuccess());
+        assertThat("Outbound処理で引き継ぎが解除されること", handedOver[0] == null, is(true));
+
+        final Statistics statistics = onlyStatistics(profiler);
+        assertThat(elapsedMillis(statistics, Phase.HANDLE_NEXT), is(ELAPSED_MILLIS));
+        assertThat(elapsedMillis(statistics, Phase.END_TRANSACTION), is(ELAPSED_MILLIS));
+    }
+
+    /**
+     * Outbound処理のコミットで例外が発生した場合も、サンプルが記録され引き継ぎが解除されること。
+     */
+    @Test
+    public void testProfilerOutboundCommitError() {
+        final StubClockProfiler profiler = setUpProfiler();
+        final Sample[] handedOver = new Sample[1];
+        final IllegalStateException error = new IllegalStateException("commit error");
+        new NonStrictExpectations() {{
+            transactionFactory.getTransaction("tran");
+            result = transaction;
+            context.isProcessSucceeded();
+            result = true;
+            context.setRequestScopedVar(withSuffix("profilerSample"), any);
+            result = new Delegate<Object>() {
+                ExecutionContext setRequestScopedVar(String name, Object value) {
+                    handedOver[0] = (Sample) value;
+                    return context;
+                }
+            };
+            context.getRequestScopedVar(withSuffix("profilerSample"));
+            result = new Delegate<Object>() {
+                Object getRequestScopedVar(String name) {
+                    return handedOver[0];
+                }
+            };
+            transaction.commit();
+            result = new Delegate<Object>() {
+                void commit() {
+                    profiler.elapse();
+                    throw error;
+                }
+            };
+        }};
+
+        target.handleInbound(context);
+        try {
+            target.handleOutbound(context);
+            fail("does not run.");
+        } catch (IllegalStateException e) {
+            assertThat(e, is(error));
+        }
+        assertThat("Outbound処理で引き継ぎが解除されること", handedOver[0] == null, is(true));
+
+        final Statistics statistics = onlyStatistics(profiler);
+        assertThat(elapsedMillis(statistics, Phase.END_TRANSACTION), is(ELAPSED_MILLIS));
+    }
+
+    /**
+     * サンプリング対象外のリクエストでは、Inbound処理とOutbound処理でリクエストスコープ変数を使用しないこと。
+     */
+    @Test
+    public void testProfilerNotSampledInboundOutbound() {
+        final StubClockProfiler profiler = setUpProfiler();
+        profiler.setSamplingInterval(2);
+        new NonStrictExpectations() {{
+            transactionFactory.getTransaction("tran");
+            result = transaction;
+            context.isProcessSucceeded();
+            result = true;
+        }};
+
+        assertTrue(target.handleInbound(context).isSuccess());
+        assertTrue(target.handleOutbound(context).isSuccess());
+
+        assertThat(profiler.getReport().size(), is(0));
+        new Verifications() {{
+            context.setRequestScopedVar(withSuffix("profilerSample"), any);
+            times = 0;
+            context.getRequestScopedVar(withSuffix("profilerSample"));
+            times = 0;
+            transaction.commit();
+            times = 1;
+        }};
+    }
+
+    /**
+     * Outbound処理が実行されずに残ったトランザクションが、外側のリクエストの終了時に解放され、
+     * 次のリクエストのInbound処理がエラーとならないこと。
+     */
+    @Test
+    public void testLeakGuard() {
+        target.setLeakGuardEnabled(true);
+        final TransactionManagementHandler outer = new TransactionManagementHandler();
+        outer.setTransactionName("outer");
+        outer.setTransactionFactory(transactionFactory);
+        outer.setLeakGuardEnabled(true);
+
+        final long leakedCount = TransactionContext.getLeakedTransactionCount();
+        new NonStrictExpectations() {{
+            transactionFactory.getTransaction(anyString);
+            result = transaction;
+            context.isProcessSucceeded();
+            result = true;
+            context.handleNext(any);
+            result = new Delegate<Object>() {
+                Object handleNext(Object data) {
+                    // Outbound処理を実行せずに終了する
+                    target.handleInbound(context);
+                    return "ok";
+                }
+            };
+        }};
+
+        assertThat(outer.handle("input", context), is((Object) "ok"));
+
+        assertThat(TransactionContext.containTransaction("tran"), is(false));
+        assertThat(TransactionContext.getLeakedTransactionCount(), is(leakedCount + 1));
+        new Verifications() {{
+            // outerのコミットと、リークしたtranのロールバック
+            transaction.commit();
+            times = 1;
+            transaction.rollback();
+            times = 1;
+        }};
+
+        // 次のリクエスト(新しい実行コンテキスト)では登録済みエラーとならない
+        final ExecutionContext next = new ExecutionContext();
+        assertTrue(target.handleInbound(next).isSuccess());
+        assertTrue(target.handleOutbound(next).isSuccess());
+        assertThat(TransactionContext.containTransaction("tran"), is(false));
+        assertThat(TransactionContext.getLeakedTransactionCount(), is(leakedCount + 1));
+    }
+
+    /**
+     * 後続のハンドラが独自に登録して削除しなかったトランザクションが、リクエストの終了時に解放され、
+     * 次のリクエストで同名のトランザクションを登録できること。
+     */
+    @Test
+    public void testLeakGuardReleasesCustomTransaction(@Mocked final Transaction customTransaction) {
+        target.setLeakGuardEnabled(true);
+        final long leakedCount = TransactionContext.getLeakedTransactionCount();
+        new NonStrictExpectations() {{
+            transactionFactory.getTransaction("tran");
+            result = transaction;
+            context.handleNext(any);
+            result = new Delegate<Object>() {
+                Object handleNext(Object data) {
+                    // 削除せずに終了する
+                    TransactionContext.setTransaction("custom", customTransaction);
+                    return "ok";
+                }
+            };
+        }};
+
+        assertThat(target.handle("input", context), is((Object) "ok"));
+
+        assertThat(TransactionContext.containTransaction("custom"), is(false));
+        assertThat(TransactionContext.getLeakedTransactionCount(), is(leakedCount + 1));
+        new Verifications() {{
+            transaction.commit();
+            times = 1;
+            customTransaction.rollback();
+            times = 1;
+        }};
+
+        // 次のリクエストでは登録済みエラーとならない
+        assertThat(target.handle("input", context), is((Object) "ok"));
+        assertThat(TransactionContext.getLeakedTransactionCount(), is(leakedCount + 2));
+    }
+
+    /**
+     * 読み取り専用のリクエストでエラーが発生した場合、
+     * 異常終了時のコールバックは読み取り専用を解除したトランザクションで呼び出されること。
+     */
+    @Test
+    @SuppressWarnings("rawtypes")
+    public void testReadOnlyAbnormalEndCallback(
+            @Mocked final ReadOnlyCapableTransaction readOnlyTransaction,
+            @Mocked final Handler<Object, Object> handler,
+            @Mocked final TransactionEventCallback<Object> callback) {
+
+        target.setReadOnly(true);
+        final IllegalStateException error = new IllegalStateException("error");
+        final List<TransactionEventCallback> listeners = new ArrayList<TransactionEventCallback>();
+        listeners.add(callback);
+
+        new NonStrictExpectations() {{
+            transactionFactory.getTransaction("tran");
+            result = readOnlyTransaction;
+            context.getHandlerQueue();
+            result = Arrays.<Handler>asList(handler);
+            context.selectHandlers(any, TransactionEventCallback.class, (Class<?>) any);
+            result = listeners;
+            context.handleNext(any);
+            result = error;
+        }};
+
+        try {
+            target.handle("input", context);
+            fail("does not run.");
+        } catch (IllegalStateException e) {
+            assertThat("元の例外が送出されること", e, is(error));
+        }
+
+        new VerificationsInOrder() {{
+            readOnlyTransaction.setReadOnly(true);
+            readOnlyTransaction.begin();
+            readOnlyTransaction.rollback();
+            readOnlyTransaction.setReadOnly(false);
+            readOnlyTransaction.begin();
+            callback.transactionAbnormalEnd(error, "input", context);
+            readOnlyTransaction.commit();
+        }};
+    }
 }
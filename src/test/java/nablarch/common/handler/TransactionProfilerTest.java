@@ -0,0 +1,186 @@
+package nablarch.common.handler;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import nablarch.common.handler.TransactionProfiler.Phase;
+import nablarch.common.handler.TransactionProfiler.Sample;
+import nablarch.common.handler.TransactionProfiler.Statistics;
+import nablarch.core.ThreadContext;
+import nablarch.core.log.Logger;
+import nablarch.test.support.log.app.OnMemoryLogWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link TransactionProfiler}のテスト。
+ */
+public class TransactionProfilerTest {
+
+    /** 計測時刻(ナノ秒) */
+    private long now;
+
+    private TransactionProfiler target = new TransactionProfiler() {
+        @Override
+        protected long nanoTime() {
+            return now;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        target.setReportInterval(0);
+        OnMemoryLogWriter.clear();
+    }
+
+    @After
+    public void tearDown() {
+        ThreadContext.clear();
+        OnMemoryLogWriter.clear();
+    }
+
+    /**
+     * サンプリング間隔ごとに1件のみサンプリングされること。
+     */
+    @Test
+    public void testSampling() {
+        target.setSamplingInterval(3);
+        assertThat(target.start(), is(nullValue()));
+        assertThat(target.start(), is(nullValue()));
+        assertThat(target.start(), is(notNullValue()));
+        assertThat(target.start(), is(nullValue()));
+        assertThat(target.start(), is(nullValue()));
+        assertThat(target.start(), is(notNullValue()));
+    }
+
+    /**
+     * リクエストパスごとに集計され、合計処理時間の降順で上位のみ返されること。
+     */
+    @Test
+    public void testReport() {
+        target.setSamplingInterval(1);
+        target.setReportSize(2);
+
+        target.record(sample("R0001", Phase.HANDLE_NEXT, 0));
+        target.record(sample("R0002", Phase.HANDLE_NEXT, 100));
+        target.record(sample("R0001", Phase.HANDLE_NEXT, 0));
+        target.record(sample("R0003", Phase.END_TRANSACTION, 50));
+
+        final List<Statistics> report = target.getReport();
+        assertThat(report.size(), is(2));
+
+        assertThat(report.get(0).getRequestPath(), is("R0002"));
+        assertThat(report.get(0).getCount(), is(1));
+        assertThat(report.get(0).getElapsed(Phase.HANDLE_NEXT), is(TimeUnit.MILLISECONDS.toNanos(100)));
+
+        assertThat(report.get(1).getRequestPath(), is("R0003"));
+        assertThat(report.get(1).getCount(), is(1));
+        assertThat(report.get(1).getElapsed(Phase.END_TRANSACTION), is(TimeUnit.MILLISECONDS.toNanos(50)));
+        assertThat(report.get(1).getTotal(), is(TimeUnit.MILLISECONDS.toNanos(50)));
+    }
+
+    /**
+     * リングバッファのサイズを超えた場合、古いサンプルから上書きされること。
+     */
+    @Test
+    public void testRingBuffer() {
+        target.setSamplingInterval(1);
+        target.setBufferSize(2);
+
+        target.record(sample("R0001", Phase.HANDLE_NEXT, 0));
+        target.record(sample("R0002", Phase.HANDLE_NEXT, 0));
+        target.record(sample("R0002", Phase.HANDLE_NEXT, 0));
+
+        final List<Statistics> report = target.getReport();
+        assertThat(report.size(), is(1));
+        assertThat(report.get(0).getRequestPath(), is("R0002"));
+        assertThat(report.get(0).getCount(), is(2));
+    }
+
+    /**
+     * レポートの出力件数に1未満を指定した場合はエラーとなること。
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidReportSize() {
+        target.setReportSize(0);
+    }
+
+    /**
+     * レポートの出力で例外が発生しても、記録の呼び出し元には送出されないこと。
+     */
+    @Test
+    public void testReportError() {
+        final TransactionProfiler profiler = new TransactionProfiler() {
+            @Override
+            protected void writeReport() {
+                throw new IllegalStateException("report error");
+            }
+        };
+        profiler.setSamplingInterval(1);
+        // レポートの出力時刻は生成時刻で初期化されるため、最初の記録でレポートが出力される
+        profiler.setReportInterval(60000);
+
+        ThreadContext.setRequestId("R0001");
+        profiler.record(profiler.start());
+
+        assertThat(profiler.getReport().size(), is(1));
+    }
+
+    /**
+     * レポートに、リクエストパスごとの件数と各フェーズの処理時間がINFOレベルで出力されること。
+     */
+    @Test
+    public void testWriteReport() {
+        target.setSamplingInterval(1);
+
+        target.record(sample("R0001", Phase.HANDLE_NEXT, 30));
+        target.record(sample("R0002", Phase.END_TRANSACTION, 200));
+        target.writeReport();
+
+        final List<String> messages = OnMemoryLogWriter.getMessages("writer.appLog");
+        assertThat(messages.size(), is(1));
+        final String[] lines = messages.get(0).trim().split(Logger.LS);
+        assertThat(lines.length, is(3));
+        assertThat(lines[0], is("INFO nablarch.common.handler.TransactionProfiler transaction profile report."));
+        assertThat(lines[1], is("\trequestPath = [R0002] count = [1] total(ms) = [200]"
+                + " BEFORE_BEGIN(ms) = [0] HANDLE_NEXT(ms) = [0] END_TRANSACTION(ms) = [200] CALLBACK(ms) = [0]"));
+        assertThat(lines[2], is("\trequestPath = [R0001] count = [1] total(ms) = [30]"
+                + " BEFORE_BEGIN(ms) = [0] HANDLE_NEXT(ms) = [30] END_TRANSACTION(ms) = [0] CALLBACK(ms) = [0]"));
+    }
+
+    /**
+     * レポートの出力時刻を過ぎて記録した場合に、レポートが出力されること。
+     */
+    @Test
+    public void testReportOnRecord() {
+        target.setSamplingInterval(1);
+        target.setReportInterval(60000);
+
+        target.record(sample("R0001", Phase.HANDLE_NEXT, 10));
+        target.record(sample("R0001", Phase.HANDLE_NEXT, 10));
+
+        final List<String> messages = OnMemoryLogWriter.getMessages("writer.appLog");
+        assertThat("出力間隔内の2件目の記録ではレポートが出力されないこと", messages.size(), is(1));
+        assertTrue(messages.get(0).contains("transaction profile report."));
+        assertTrue(messages.get(0).contains("requestPath = [R0001] count = [1] total(ms) = [10]"));
+    }
+
+    /**
+     * 指定されたフェーズに、指定された時間の処理時間を記録したサンプルを生成する。
+     */
+    private Sample sample(String requestId, Phase phase, long millis) {
+        ThreadContext.setRequestId(requestId);
+        final Sample sample = target.start();
+        now += TimeUnit.MILLISECONDS.toNanos(millis);
+        sample.lap(phase);
+        return sample;
+    }
+}
@@ -0,0 +1,207 @@
+package nablarch.core.transaction;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import mockit.Mocked;
+import mockit.NonStrictExpectations;
+import mockit.Verifications;
+
+import org.junit.Test;
+
+/**
+ * {@link BulkTransactionExecutor}のテスト。
+ */
+public class BulkTransactionExecutorTest {
+
+    @Mocked
+    private Transaction transaction;
+
+    /** 負の値をエラーとし、正常に処理された値を記録するテスト用の実装 */
+    private static class Executor extends BulkTransactionExecutor<Integer> {
+
+        private final List<Integer> processed = new ArrayList<Integer>();
+
+        Executor(Transaction transaction, int commitInterval) {
+            super(transaction, commitInterval);
+        }
+
+        @Override
+        protected void doInTransaction(Transaction transaction, Integer item) {
+            if (item < 0) {
+                throw new IllegalArgumentException("negative value. value = [" + item + "]");
+            }
+            processed.add(item);
+        }
+    }
+
+    /**
+     * コミット間隔ごとにコミットされること。
+     */
+    @Test
+    public void testCommitInterval() {
+        final Executor executor = new Executor(transaction, 2);
+        final BulkTransactionResult result = executor.execute(Arrays.asList(1, 2, 3, 4, 5));
+
+        assertThat(result.getSuccessCount(), is(5L));
+        assertThat(result.getFailedCount(), is(0L));
+        assertThat(result.getFailedIndices().length, is(0));
+        assertThat(executor.processed, is(Arrays.asList(1, 2, 3, 4, 5)));
+
+        new Verifications() {{
+            transaction.begin();
+            times = 3;
+            transaction.commit();
+            times = 3;
+            transaction.rollback();
+            times = 0;
+        }};
+    }
+
+    /**
+     * エラーとなった処理対象を除いて再処理され、エラーとなったインデックスが記録されること。
+     */
+    @Test
+    public void testItemError() {
+        final Executor executor = new Executor(transaction, 3);
+        final BulkTransactionResult result = executor.execute(Arrays.asList(1, -2, 3, 4, -5, -6, 7));
+
+        assertThat(result.getSuccessCount(), is(4L));
+        assertThat(result.getFailedCount(), is(3L));
+        assertThat(result.getFailedIndices()[0], is(1L));
+        assertThat(result.getFailedIndices()[1], is(4L));
+        assertThat(result.getFailedIndices()[2], is(5L));
+
+        new Verifications() {{
+            // グループ1: 1件エラー後に再処理してコミット
+            // グループ2: 2件エラー後に残りの1件でコミット
+            // グループ3: 1件でコミット
+            transaction.begin();
+            times = 6;
+            transaction.rollback();
+            times = 3;
+            transaction.commit();
+            times = 3;
+        }};
+    }
+
+    /**
+     * コミットで発生した例外は、ロールバック後にそのまま送出されること。
+     */
+    @Test
+    public void testCommitError() {
+        final IllegalStateException error = new IllegalStateException("commit error");
+        new NonStrictExpectations() {{
+            transaction.commit();
+            result = error;
+        }};
+
+        final Executor executor = new Executor(transaction, 2);
+        try {
+            executor.execute(Arrays.asList(1, 2, 3));
+            fail("does not run.");
+        } catch (IllegalStateException e) {
+            assertThat(e, is(error));
+        }
+
+        new Verifications() {{
+            transaction.begin();
+            times = 1;
+            transaction.rollback();
+            times = 1;
+        }};
+    }
+
+    /**
+     * 処理対象のエラー後のロールバックで例外が発生した場合、処理対象のエラーとはせずに
+     * ロールバックで発生した例外が送出されること。
+     */
+    @Test
+    public void testRollbackError() {
+        final IllegalStateException error = new IllegalStateException("rollback error");
+        new NonStrictExpectations() {{
+            transaction.rollback();
+            result = error;
+        }};
+
+        final List<Object> notified = new ArrayList<Object>();
+        final Executor executor = new Executor(transaction, 3) {
+            @Override
+            protected void onItemError(Integer item, long index, RuntimeException e) {
+                notified.add(item);
+            }
+        };
+        try {
+            executor.execute(Arrays.asList(1, -2, 3));
+            fail("does not run.");
+        } catch (IllegalStateException e) {
+            assertThat(e, is(error));
+        }
+
+        assertThat(notified.isEmpty(), is(true));
+        new Verifications() {{
+            transaction.begin();
+            times = 1;
+            transaction.rollback();
+            times = 1;
+            transaction.commit();
+            times = 0;
+        }};
+    }
+
+    /**
+     * 再実行時に先に処理した処理対象がエラーとなった場合も、エラーとなったインデックスが昇順で返されること。
+     */
+    @Test
+    public void testFailedIndicesOrder() {
+        final Executor executor = new Executor(transaction, 3) {
+            private int count;
+
+            @Override
+            protected void doInTransaction(Transaction transaction, Integer item) {
+                // 1件目は2回目の処理でエラーとする
+                if (item == 1 && ++count == 2) {
+                    throw new IllegalArgumentException("retry error");
+                }
+                super.doInTransaction(transaction, item);
+            }
+        };
+        final BulkTransactionResult result = executor.execute(Arrays.asList(1, 2, -3));
+
+        assertThat(result.getSuccessCount(), is(1L));
+        assertThat(result.getFailedCount(), is(2L));
+        assertThat(result.getFailedIndices()[0], is(0L));
+        assertThat(result.getFailedIndices()[1], is(2L));
+    }
+
+    /**
+     * コミット間隔に1未満を指定した場合はエラーとなること。
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCommitInterval() {
+        new Executor(transaction, 0);
+    }
+
+    /**
+     * 処理対象でエラーが発生した場合、エラーとなった処理対象とインデックスが通知されること。
+     */
+    @Test
+    public void testOnItemError() {
+        final List<Object> notified = new ArrayList<Object>();
+        final Executor executor = new Executor(transaction, 2) {
+            @Override
+            protected void onItemError(Integer item, long index, RuntimeException e) {
+                notified.add(item);
+                notified.add(index);
+            }
+        };
+        executor.execute(Arrays.asList(1, 2, -3).iterator());
+
+        assertThat(notified, is(Arrays.<Object>asList(-3, 2L)));
+    }
+}
@@ -14,6 +14,8 @@ import java.util.Map;
 
 import mockit.Deencapsulation;
 import mockit.Mocked;
+import mockit.NonStrictExpectations;
+import mockit.Verifications;
 
 
 public class TransactionContextTest {
@@ -26,12 +28,16 @@ public class TransactionContextTest {
     public void setUp() throws Exception {
         final ThreadLocal<Map<String, Transaction>> transaction = Deencapsulation.getField(TransactionContext.class, "transaction");
         transaction.remove();
+        final ThreadLocal<?> requestState = Deencapsulation.getField(TransactionContext.class, "requestState");
+        requestState.remove();
     }
 
     @After
     public void tearDown() throws Exception {
         final ThreadLocal<Map<String, Transaction>> transaction = Deencapsulation.getField(TransactionContext.class, "transaction");
         transaction.remove();
+        final ThreadLocal<?> requestState = Deencapsulation.getField(TransactionContext.class, "requestState");
+        requestState.remove();
     }
 
     @Test
@@ -112,4 +118,92 @@ public class TransactionContextTest {
         assertThat("削除されたのでfalse",
                 TransactionContext.containTransaction(TransactionContext.DEFAULT_TRANSACTION_CONTEXT_KEY), is(false));
     }
+
+    /**
+     * 最も外側のリクエストの終了時に、リクエスト内で登録されたまま残っているトランザクションが解放されること。
+     */
+    @Test
+    public void testExitRequestReleasesLeakedTransactions() throws Exception {
+        final long leakedCount = TransactionContext.getLeakedTransactionCount();
+
+        // リクエストの範囲外で登録したトランザクション
+        TransactionContext.setTransaction("untracked", mockTransaction1);
+
+        TransactionContext.enterRequest();
+        TransactionContext.setTransaction("outer", mockTransaction1);
+
+        TransactionContext.enterRequest();
+        TransactionContext.setTransaction("inner", mockTransaction2);
+        TransactionContext.exitRequest();
+
+        assertThat("内側のリクエストの終了時には解放されない",
+                TransactionContext.containTransaction("inner"), is(true));
+        assertThat(TransactionContext.getLeakedTransactionCount(), is(leakedCount));
+
+        TransactionContext.exitRequest();
+
+        assertThat("最も外側のリクエストの終了時に解放される",
+                TransactionContext.containTransaction("inner"), is(false));
+        assertThat(TransactionContext.containTransaction("outer"), is(false));
+        assertThat("リクエストに属さないトランザクションは解放されない",
+                TransactionContext.containTransaction("untracked"), is(true));
+        assertThat(TransactionContext.getLeakedTransactionCount(), is(leakedCount + 2));
+
+        new Verifications() {{
+            mockTransaction1.rollback();
+            times = 1;
+            mockTransaction2.rollback();
+            times = 1;
+        }};
+
+        // 次のリクエストでは同名のトランザクションを登録できる
+        TransactionContext.enterRequest();
+        TransactionContext.setTransaction("inner", mockTransaction2);
+        TransactionContext.removeTransaction("inner");
+        TransactionContext.exitRequest();
+        assertThat(TransactionContext.getLeakedTransactionCount(), is(leakedCount + 2));
+    }
+
+    /**
+     * リークしたトランザクションのロールバックに失敗した場合も、解放されること。
+     */
+    @Test
+    public void testExitRequestRollbackError() throws Exception {
+        final long leakedCount = TransactionContext.getLeakedTransactionCount();
+        new NonStrictExpectations() {{
+            mockTransaction1.rollback();
+            result = new IllegalStateException("rollback error");
+        }};
+
+        TransactionContext.enterRequest();
+        TransactionContext.setTransaction("tran", mockTransaction1);
+        TransactionContext.exitRequest();
+
+        assertThat(TransactionContext.containTransaction("tran"), is(false));
+        assertThat(TransactionContext.getLeakedTransactionCount(), is(leakedCount + 1));
+    }
+
+    /**
+     * リクエストの範囲外で登録した場合は、リクエストに属さないこと。
+     */
+    @Test
+    public void testSetTransactionOutsideRequest() throws Exception {
+        final long leakedCount = TransactionContext.getLeakedTransactionCount();
+
+        TransactionContext.setTransaction("tran", mockTransaction1);
+        TransactionContext.enterRequest();
+        TransactionContext.exitRequest();
+
+        assertThat(TransactionContext.containTransaction("tran"), is(true));
+        assertThat(TransactionContext.getLeakedTransactionCount(), is(leakedCount));
+
+        try {
+            TransactionContext.setTransaction("tran", mockTransaction2);
+            fail("does not run.");
+        } catch (IllegalArgumentException e) {
+            assertEquals(
+                    "specified transaction name was duplication in thread local. transaction name = [tran]",
+                    e.getMessage());
+        }
+    }
 }